@@ -0,0 +1,187 @@
+package com.serversocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AdmissionController {
+    public static final String TARGET_DELAY_KEY = "ADMISSION_TARGET_DELAY";
+    public static final String INTERVAL_KEY = "ADMISSION_INTERVAL";
+    public static final String MAX_IN_FLIGHT_KEY = "ADMISSION_MAX_IN_FLIGHT";
+    public static final String MAX_BULK_IN_FLIGHT_KEY = "ADMISSION_MAX_BULK_IN_FLIGHT";
+    public static final String BULK_SIZE_KEY = "ADMISSION_BULK_SIZE";
+    public static final String RETRY_AFTER_KEY = "ADMISSION_RETRY_AFTER";
+    public static final String PRIORITY_PATHS_KEY = "ADMISSION_PRIORITY_PATHS";
+    public static final String MAX_QUEUE_KEY = "ADMISSION_MAX_QUEUE";
+
+    private static final int DEFAULT_TARGET_DELAY = 5; // in milliseconds
+    private static final int DEFAULT_INTERVAL = 100; // in milliseconds
+    private static final int DEFAULT_BULK_SIZE = 1024 * 1024; // in bytes
+    private static final int DEFAULT_RETRY_AFTER = 1; // in seconds
+
+    public enum Priority { HIGH, NORMAL, BULK }
+
+    private final long targetDelay;
+    private final long interval;
+    private final int maxInFlight;
+    private final int maxBulkInFlight;
+    private final int maxQueue;
+    private final long bulkSize;
+    private final List<String> priorityPaths;
+    private final byte[] serviceUnavailable;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shedNormal = new LongAdder();
+    private final LongAdder shedBulk = new LongAdder();
+    private final LongAdder shedByDelay = new LongAdder();
+    private final LongAdder shedByInFlight = new LongAdder();
+    private final LongAdder shedAtAccept = new LongAdder();
+
+    // CoDel state: when the queueing delay first stayed above target, and whether it has for a full interval.
+    private long firstAboveTime;
+    private volatile boolean overloaded;
+    private volatile long lastDelay;
+
+    /**
+     * Constructs an AdmissionController from the configured thresholds.
+     *
+     * @param configService the loaded server configuration.
+     * @param workerThreads the size of the worker pool, the default limits derive from it.
+     */
+    public AdmissionController(ConfigService configService, int workerThreads) {
+        this.targetDelay = TimeUnit.MILLISECONDS.toNanos(configService.getIntSettingsWithKey(TARGET_DELAY_KEY, DEFAULT_TARGET_DELAY));
+        this.interval = TimeUnit.MILLISECONDS.toNanos(configService.getIntSettingsWithKey(INTERVAL_KEY, DEFAULT_INTERVAL));
+        // Below the worker count, so requests are shed while some workers are still free to serve the others
+        this.maxInFlight = configService.getIntSettingsWithKey(MAX_IN_FLIGHT_KEY, Math.max(1, workerThreads * 7 / 8));
+        this.maxBulkInFlight = configService.getIntSettingsWithKey(MAX_BULK_IN_FLIGHT_KEY, maxInFlight * 3 / 4);
+        this.maxQueue = configService.getIntSettingsWithKey(MAX_QUEUE_KEY, workerThreads);
+        this.bulkSize = configService.getIntSettingsWithKey(BULK_SIZE_KEY, DEFAULT_BULK_SIZE);
+        this.priorityPaths = Arrays.asList(configService.getSettingsWithKey(PRIORITY_PATHS_KEY,
+                StatusService.STATUS_PATH + "," + StatusService.HEALTH_PATH).split("\\s*,\\s*"));
+
+        // Encoded once, shedding must stay cheaper than serving.
+        int retryAfter = configService.getIntSettingsWithKey(RETRY_AFTER_KEY, DEFAULT_RETRY_AFTER);
+        this.serviceUnavailable = ("HTTP/1.1 503 Service Unavailable\r\n" +
+                "Retry-After: " + retryAfter + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n" +
+                "Server: WW Server Pro\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Records how long a connection waited for a worker, and updates the overload state (CoDel).
+     * The server is overloaded once the queueing delay has stayed above target for a whole interval,
+     * and recovers as soon as a connection is dequeued below target.
+     *
+     * @param delay the queueing delay in nanoseconds.
+     */
+    public synchronized void onDequeue(long delay) {
+        long now = System.nanoTime();
+        lastDelay = delay;
+
+        if (delay < targetDelay) {
+            firstAboveTime = 0;
+            overloaded = false;
+        } else if (firstAboveTime == 0) {
+            firstAboveTime = now + interval;
+        } else if (now >= firstAboveTime) {
+            overloaded = true;
+        }
+    }
+
+    /**
+     * Decides at accept time whether a connection may wait for a worker. Connections are refused right away while the
+     * queue is full, or while overloaded unless the queue is empty, so they do not pay the queue delay to be shed.
+     *
+     * @param queued the connections waiting for a worker.
+     * @return true if the connection is queued, false if it must be answered with {@link #getServiceUnavailable()}.
+     */
+    public boolean tryAdmitConnection(int queued) {
+        if (queued >= maxQueue || (overloaded && queued > 0)) {
+            shedAtAccept.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Classifies a request, health and status paths come first and large or ranged downloads last.
+     *
+     * @param requestHeader the parsed request header.
+     * @param fileService   the resolved file.
+     * @return the request priority.
+     */
+    public Priority classify(RequestHeader requestHeader, FileService fileService) {
+        String requestedFile = requestHeader.getRequestedFile();
+        if (priorityPaths.contains(requestedFile)) {
+            return Priority.HIGH;
+        }
+        if (requestHeader.doesHeaderHaveKey("Range") || fileService.getFileLength() >= bulkSize) {
+            return Priority.BULK;
+        }
+        return Priority.NORMAL;
+    }
+
+    /**
+     * Decides whether a request is served or shed. An admitted request must be completed with {@link #complete()}.
+     *
+     * @param priority the request priority.
+     * @param delay    the queueing delay of the connection in nanoseconds, 0 for keep-alive requests.
+     * @return true if the request is admitted, false if it must be answered with {@link #getServiceUnavailable()}.
+     */
+    public boolean tryAdmit(Priority priority, long delay) {
+        int current = inFlight.incrementAndGet();
+
+        boolean admit = true;
+        if (priority != Priority.HIGH) {
+            int limit = (priority == Priority.BULK) ? maxBulkInFlight : maxInFlight;
+            if (current > limit) {
+                shedByInFlight.increment();
+                admit = false;
+            } else if (overloaded && (priority == Priority.BULK || delay >= targetDelay)) {
+                shedByDelay.increment();
+                admit = false;
+            }
+        }
+
+        if (!admit) {
+            inFlight.decrementAndGet();
+            (priority == Priority.BULK ? shedBulk : shedNormal).increment();
+            return false;
+        }
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * Marks an admitted request as finished.
+     */
+    public void complete() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Retrieves the pre-encoded 503 response sent to shed requests.
+     *
+     * @return the complete response bytes.
+     */
+    public byte[] getServiceUnavailable() {
+        return serviceUnavailable;
+    }
+
+    /**
+     * Retrieves a summary of the admission counters.
+     *
+     * @return the admission statistics.
+     */
+    public String getStats() {
+        return String.format("overloaded=%s, queueDelay=%.1fms, inFlight=%d, admitted=%d, shedAtAccept=%d, shedNormal=%d, shedBulk=%d, shedByDelay=%d, shedByInFlight=%d",
+                overloaded, lastDelay / 1e6, inFlight.get(), admitted.sum(), shedAtAccept.sum(), shedNormal.sum(),
+                shedBulk.sum(), shedByDelay.sum(), shedByInFlight.sum());
+    }
+}
@@ -0,0 +1,228 @@
+package com.serversocket;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BufferPool {
+    public static final String DEBUG_KEY = "BUFFER_POOL_DEBUG";
+    public static final String MAX_POOLED_KEY = "BUFFER_POOL_MAX_PER_CLASS";
+
+    public static final int SMALL = 1024;
+    public static final int MEDIUM = 8 * 1024;
+    public static final int LARGE = 64 * 1024;
+
+    private static final int[] SIZE_CLASSES = {SMALL, MEDIUM, LARGE};
+    private static final int THREAD_CACHE_SIZE = 4;
+    private static final int DEFAULT_MAX_POOLED = 256;
+
+    private static final BufferPool INSTANCE = new BufferPool();
+
+    private final List<Queue<ByteBuffer>> sharedQueues;
+    private final AtomicInteger[] sharedSizes;
+    private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> threadCaches;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    // Acquire sites of outstanding buffers, only tracked in debug mode.
+    private final Map<ByteBuffer, Throwable> outstanding = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private volatile boolean debug;
+    private volatile int maxPooled = DEFAULT_MAX_POOLED;
+
+    private BufferPool() {
+        this.sharedQueues = new ArrayList<>();
+        this.sharedSizes = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            sharedQueues.add(new ConcurrentLinkedQueue<>());
+            sharedSizes[i] = new AtomicInteger();
+        }
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            List<ArrayDeque<ByteBuffer>> caches = new ArrayList<>(SIZE_CLASSES.length);
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                caches.add(new ArrayDeque<>(THREAD_CACHE_SIZE));
+            }
+            return caches;
+        });
+    }
+
+    /**
+     * Retrieves the process-wide buffer pool.
+     *
+     * @return the buffer pool.
+     */
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Applies the pool settings from the configuration.
+     *
+     * @param configService the loaded server configuration.
+     */
+    public void configure(ConfigService configService) {
+        this.debug = configService.getBooleanSettingsWithKey(DEBUG_KEY, false);
+        this.maxPooled = configService.getIntSettingsWithKey(MAX_POOLED_KEY, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * Borrows a cleared buffer with at least the given capacity.
+     * Requests larger than the biggest size class are allocated and never pooled.
+     *
+     * @param minCapacity the minimum capacity in bytes.
+     * @return a buffer that must be given back with {@link #release(ByteBuffer)}.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        acquired.increment();
+        int sizeClass = sizeClassOf(minCapacity);
+        ByteBuffer buffer = null;
+
+        if (sizeClass != -1) {
+            buffer = threadCaches.get().get(sizeClass).pollFirst();
+            if (buffer != null) {
+                threadCacheHits.increment();
+            } else {
+                buffer = sharedQueues.get(sizeClass).poll();
+                if (buffer != null) {
+                    sharedSizes[sizeClass].decrementAndGet();
+                }
+            }
+        }
+        if (buffer == null) {
+            // Heap buffers, since connections go through socket streams that need the backing array.
+            allocated.increment();
+            buffer = ByteBuffer.allocate((sizeClass == -1) ? minCapacity : SIZE_CLASSES[sizeClass]);
+        }
+
+        buffer.clear();
+        if (debug) {
+            outstanding.put(buffer, new Throwable("Buffer acquired by " + Thread.currentThread().getName()));
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a borrowed buffer back to the pool.
+     *
+     * @param buffer the buffer returned by {@link #acquire(int)}, ignored if null.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (debug && outstanding.remove(buffer) == null) {
+            System.err.printf("[%s] Buffer released twice or not from the pool\n", new Date());
+            return;
+        }
+        released.increment();
+
+        int sizeClass = indexOfCapacity(buffer.capacity());
+        if (sizeClass == -1) {
+            discarded.increment();
+            return;
+        }
+
+        ArrayDeque<ByteBuffer> threadCache = threadCaches.get().get(sizeClass);
+        if (threadCache.size() < THREAD_CACHE_SIZE) {
+            threadCache.addFirst(buffer);
+            return;
+        }
+        offerShared(sizeClass, buffer);
+    }
+
+    /**
+     * Hands a borrowed buffer over to a long-lived owner, so leak detection does not blame the thread that acquired it.
+     *
+     * @param buffer the buffer returned by {@link #acquire(int)}.
+     * @param owner  the name of the new owner.
+     */
+    public void transfer(ByteBuffer buffer, String owner) {
+        if (debug && outstanding.containsKey(buffer)) {
+            outstanding.put(buffer, new Throwable("Buffer acquired by " + owner));
+        }
+    }
+
+    /**
+     * Moves the buffers cached by the current thread to the shared queues. Called when a connection ends,
+     * so the next connection finds them whichever worker it lands on.
+     */
+    public void releaseThreadCache() {
+        List<ArrayDeque<ByteBuffer>> caches = threadCaches.get();
+        for (int i = 0; i < caches.size(); i++) {
+            ByteBuffer buffer;
+            while ((buffer = caches.get(i).pollFirst()) != null) {
+                offerShared(i, buffer);
+            }
+        }
+        threadCaches.remove();
+    }
+
+    /**
+     * Reports the buffers the current thread still holds in debug mode. Called when a connection ends.
+     */
+    public void checkLeaks() {
+        if (debug) {
+            reportLeaks(Thread.currentThread().getName());
+            System.out.format("[%s] Buffer pool: %s\n", new Date(), getStats());
+        }
+    }
+
+    /**
+     * Retrieves a summary of the pool usage counters.
+     *
+     * @return the pool statistics.
+     */
+    public String getStats() {
+        long acquiredCount = acquired.sum();
+        double reuse = (acquiredCount == 0) ? 0 : 100.0 * (acquiredCount - allocated.sum()) / acquiredCount;
+        return String.format("acquired=%d, released=%d, allocated=%d, reused=%.1f%%, threadCacheHits=%d, discarded=%d, pooled=%s",
+                acquiredCount, released.sum(), allocated.sum(), reuse, threadCacheHits.sum(), discarded.sum(),
+                Arrays.toString(Arrays.stream(sharedSizes).mapToInt(AtomicInteger::get).toArray()));
+    }
+
+    private void reportLeaks(String threadName) {
+        String owner = "Buffer acquired by " + threadName;
+        synchronized (outstanding) {
+            for (Throwable site : outstanding.values()) {
+                if (site.getMessage().equals(owner)) {
+                    System.err.printf("[%s] Buffer leaked by %s\n", new Date(), threadName);
+                    site.printStackTrace();
+                }
+            }
+            outstanding.values().removeIf(site -> site.getMessage().equals(owner));
+        }
+    }
+
+    private void offerShared(int sizeClass, ByteBuffer buffer) {
+        if (sharedSizes[sizeClass].incrementAndGet() > maxPooled) {
+            sharedSizes[sizeClass].decrementAndGet();
+            discarded.increment();
+            return;
+        }
+        sharedQueues.get(sizeClass).offer(buffer);
+    }
+
+    private static int sizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfCapacity(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,171 @@
+package com.serversocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Packs a site directory into a {@link SiteBundle}.
+ */
+public class BundlePacker {
+    private final Path siteRoot;
+    private final boolean gzip;
+
+    private static class PackedFile {
+        final Path file;
+        final byte[] path;
+        final byte[] contentType;
+
+        PackedFile(Path file, byte[] path, byte[] contentType) {
+            this.file = file;
+            this.path = path;
+            this.contentType = contentType;
+        }
+    }
+
+    public BundlePacker(Path siteRoot, boolean gzip) {
+        this.siteRoot = siteRoot;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Packs a site directory into a bundle file, replacing any previous bundle atomically.
+     * Usage: BundlePacker [--gzip] site-directory output.bundle
+     */
+    public static void main(String[] args) throws IOException {
+        boolean gzip = false;
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--gzip")) {
+                gzip = true;
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.size() != 2) {
+            System.err.println("Usage: java com.serversocket.BundlePacker [--gzip] site-directory output" + SiteBundle.EXTENSION);
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        int count = new BundlePacker(Path.of(paths.get(0)), gzip).pack(Path.of(paths.get(1)));
+        System.out.format("Packed %d files into %s in %d ms\n", count, paths.get(1), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Writes the bundle to a temporary file next to the target and moves it in place, so a running
+     * server remaps either the old or the new bundle, never a partial one.
+     *
+     * @param target the bundle file.
+     * @return the number of packed files.
+     * @throws IOException If the site cannot be read or the bundle cannot be written.
+     */
+    public int pack(Path target) throws IOException {
+        List<PackedFile> files = listFiles();
+        Path absoluteTarget = target.toAbsolutePath();
+        Path temporary = Files.createTempFile(absoluteTarget.getParent(), absoluteTarget.getFileName().toString(), ".tmp");
+        if (Files.getFileStore(temporary).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            // Temporary files are private, the server may run as another user
+            Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-r--r--"));
+        }
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, files);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return files.size();
+    }
+
+    /**
+     * Lists the regular files of the site, sorted by path bytes as the bundle index requires.
+     *
+     * @return the files to pack.
+     * @throws IOException If the site cannot be read.
+     */
+    private List<PackedFile> listFiles() throws IOException {
+        List<PackedFile> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(siteRoot)) {
+            for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                String path = siteRoot.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                String contentType = FileService.probeContentType(file.toString());
+                files.add(new PackedFile(file, path.getBytes(StandardCharsets.UTF_8), contentType.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        files.sort((a, b) -> Arrays.compareUnsigned(a.path, b.path));
+        return files;
+    }
+
+    /**
+     * Writes the header, index, metadata and data sections.
+     * The metadata has a fixed size per file, so the data offsets are known before any file is read.
+     *
+     * @param channel the bundle file.
+     * @param files   the files to pack.
+     * @throws IOException If a file cannot be read or the bundle cannot be written.
+     */
+    private void write(FileChannel channel, List<PackedFile> files) throws IOException {
+        long metaStart = SiteBundle.HEADER_SIZE + (long) files.size() * SiteBundle.RECORD_SIZE;
+        long metaSize = 0;
+        for (PackedFile file : files) {
+            metaSize += 6 + file.path.length + file.contentType.length + (FileCache.ETAG_HEX_LENGTH + 2);
+        }
+
+        ByteBuffer index = ByteBuffer.allocate((int) (metaStart + metaSize));
+        index.putInt(SiteBundle.MAGIC).putInt(SiteBundle.VERSION).putInt(files.size()).putInt(0);
+
+        long metaOffset = metaStart;
+        long dataOffset = metaStart + metaSize;
+        for (int i = 0; i < files.size(); i++) {
+            PackedFile file = files.get(i);
+            byte[] data = Files.readAllBytes(file.file);
+            byte[] gzipData = gzip ? FileCache.gzip(data) : null;
+
+            // Index record
+            index.position(SiteBundle.HEADER_SIZE + i * SiteBundle.RECORD_SIZE);
+            index.putLong(metaOffset).putLong(dataOffset).putLong(data.length);
+            dataOffset = writeFully(channel, data, dataOffset);
+            if (gzipData != null) {
+                index.putLong(dataOffset).putLong(gzipData.length);
+                dataOffset = writeFully(channel, gzipData, dataOffset);
+            } else {
+                index.putLong(0).putLong(0);
+            }
+
+            // Path, content type and ETag
+            index.position((int) metaOffset);
+            putString(index, file.path);
+            putString(index, file.contentType);
+            putString(index, FileCache.getETag(data).getBytes(StandardCharsets.US_ASCII));
+            metaOffset = index.position();
+        }
+
+        if (dataOffset > Integer.MAX_VALUE) {
+            throw new IOException("Site " + siteRoot + " is larger than the 2 GB a bundle can map");
+        }
+        writeFully(channel, index.array(), 0);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static long writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(bytes);
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+        return position;
+    }
+}
@@ -1,6 +1,9 @@
 package com.serversocket;
 
+import com.serversocket.jfr.*;
+
 import javax.naming.ConfigurationException;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
@@ -17,65 +20,359 @@ public class ClientServer implements Runnable {
 
     private final Socket client;
     private final ConfigService configService;
+    private final TlsService tlsService;
+    private final AdmissionController admissionController;
+    private final RateLimiter rateLimiter;
+    private final StatusService statusService;
+    private final DrainService drainService;
+    private final SiteBundleService siteBundleService;
+    private final ProxyService proxyService;
+    private final SlowClientGuard slowClientGuard;
+    private final long acceptedAt;
+    private final long acceptedNanos;
+
+    private RequestReader requestReader;
+    private PooledOutputStream outputStream;
 
-    private BufferedReader bufferedReader;
-    private BufferedWriter bufferedWriter;
-    private BufferedOutputStream bos;
+    private boolean busy;
+    private boolean closedByDrain;
+    private volatile boolean closedAsSlow;
+    private volatile boolean synthetic;
 
-    public ClientServer(Socket client, ConfigService configService) {
+    public ClientServer(
+            Socket client,
+            ConfigService configService,
+            TlsService tlsService,
+            AdmissionController admissionController,
+            RateLimiter rateLimiter,
+            StatusService statusService,
+            DrainService drainService,
+            SiteBundleService siteBundleService,
+            ProxyService proxyService,
+            SlowClientGuard slowClientGuard
+    ) {
         this.client = client;
         this.configService = configService;
+        this.tlsService = tlsService;
+        this.admissionController = admissionController;
+        this.rateLimiter = rateLimiter;
+        this.statusService = statusService;
+        this.drainService = drainService;
+        this.siteBundleService = siteBundleService;
+        this.proxyService = proxyService;
+        this.slowClientGuard = slowClientGuard;
+        this.acceptedAt = System.currentTimeMillis();
+        this.acceptedNanos = System.nanoTime();
     }
 
     /**
      * Server user request.
      */
     public void run() {
+        ConnectionCloseEvent closeEvent = new ConnectionCloseEvent();
+        closeEvent.begin();
+        int requests = 0;
+
+        drainService.register(this);
+        // The header deadline of the first request covers the TLS handshake too
+        SlowClientGuard.Watch watch = (synthetic) ? null : slowClientGuard.watch(this);
         try {
-            System.out.format("[%s] Accepted\n", new Date());
+            log("[%s] Accepted\n", new Date());
 
-            // Create buffer
-            bufferedReader = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            bufferedWriter = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));
-            bos = new BufferedOutputStream(client.getOutputStream());
-            String connectionFromRequest;
+            // Time spent waiting for a worker, only the first request of a connection has queued.
+            // Status and warm-up connections never wait in the main queue, their delay says nothing about its load.
+            long queueDelay = System.nanoTime() - acceptedNanos;
+            if (!synthetic && !statusService.isStatusPort(client.getLocalPort())) {
+                admissionController.onDequeue(queueDelay);
+            }
 
-            // Loop if user does not ask to close
-            do {
-                RequestHeader requestHeader = new RequestHeader(bufferedReader);
+            ConnectionOpenEvent openEvent = new ConnectionOpenEvent();
+            if (openEvent.shouldCommit()) {
+                openEvent.remoteAddress = client.getInetAddress().getHostAddress();
+                openEvent.scheme = (tlsService != null) ? "https" : "http";
+                openEvent.queueDelay = queueDelay;
+                openEvent.commit();
+            }
 
-                System.out.format("[%s] %s\n", new Date(), requestHeader.getRequestStatus());
-                connectionFromRequest = requestHeader.getHeaderWithKey("Connection");
+            // Run the TLS handshake on this thread rather than the accepting one
+            if (tlsService != null && client instanceof SSLSocket) {
+                tlsService.handshake((SSLSocket) client, acceptedAt);
+            }
 
-                // Adjust client socket if client request has keep alive connection header.
-                if (Objects.equals(connectionFromRequest, "keep-alive")) {
-                    client.setKeepAlive(true);
-                    client.setTcpNoDelay(true);
-                    client.setSoTimeout((int) (TIMEOUT * 1000));
-                }
-                FileService fileService = getRequestedFile(requestHeader);
+            // Borrow buffers from the pool
+            requestReader = new RequestReader(client.getInputStream());
+            outputStream = new PooledOutputStream(client.getOutputStream());
+            if (watch != null) {
+                watch.setStreams(requestReader, outputStream);
+            }
+            boolean keepAlive;
 
-                // Throw exception on invalid range header
-                if (!requestHeader.validRangeValues(fileService.getFileLength())) {
-                    throw new Exception("Invalid range request headers");
+            // Loop if user does not ask to close, and the server is not shutting down
+            do {
+                if (watch != null && requests > 0) {
+                    watch.beginHeader();
                 }
+                RequestHeader requestHeader = new RequestHeader(requestReader);
+                if (watch != null) {
+                    watch.endHeader();
+                }
+                requests++;
 
-                HttpResponse httpResponse = new HttpResponse(requestHeader, fileService, bufferedWriter, bos);
-                httpResponse.writeResponseHeader();
-                httpResponse.writeResponseBody();
-
-            } while (!connectionFromRequest.equals("close"));
+                // The connection may have been closed for draining while the header arrived
+                if (!beginRequest()) {
+                    break;
+                }
+                try {
+                    keepAlive = serveRequest(requestHeader, queueDelay);
+                } finally {
+                    endRequest();
+                }
+                queueDelay = 0;
+            } while (keepAlive && !drainService.isDraining());
         }
-        catch (SocketTimeoutException e) {}
+        catch (SocketTimeoutException | EOFException e) {}
         catch (Exception e) {
-            System.err.printf("[%s] %s - %s\n", new Date(), e.getClass(), e.getMessage());
+            if (!drainService.isDraining() && !closedAsSlow) {
+                System.err.printf("[%s] %s - %s\n", new Date(), e.getClass(), e.getMessage());
+            }
         } finally {
+            drainService.unregister(this);
+            if (watch != null) {
+                watch.close();
+            }
+            if (!synthetic) {
+                rateLimiter.closeConnection(client.getInetAddress());
+            }
             try {
                 client.close();
             } catch (IOException e) {
                 System.err.printf("[%s] %s\n", e.getClass(), e.getMessage());
             }
-            System.out.format("[%s] Closed\n", new Date());
+            if (requestReader != null) {
+                requestReader.close();
+            }
+            if (outputStream != null) {
+                outputStream.close();
+            }
+            BufferPool.getInstance().checkLeaks();
+            BufferPool.getInstance().releaseThreadCache();
+            log("[%s] Closed\n", new Date());
+
+            closeEvent.end();
+            if (closeEvent.shouldCommit()) {
+                closeEvent.remoteAddress = client.getInetAddress().getHostAddress();
+                closeEvent.requests = requests;
+                closeEvent.bytesWritten = (outputStream != null) ? outputStream.getBytesWritten() : 0;
+                closeEvent.commit();
+            }
+        }
+    }
+
+    /**
+     * Serves one request of the connection.
+     *
+     * @param requestHeader the parsed request header.
+     * @param queueDelay    the time the connection waited for a worker, 0 for keep-alive requests.
+     * @return true if the connection is kept alive for another request, false otherwise.
+     * @throws Exception if the request is invalid or the response cannot be written.
+     */
+    private boolean serveRequest(RequestHeader requestHeader, long queueDelay) throws Exception {
+        log("[%s] %s\n", new Date(), requestHeader.getRequestStatus());
+        String connectionFromRequest = requestHeader.getHeaderWithKey("Connection");
+        boolean keepAlive = Objects.equals(connectionFromRequest, "keep-alive") && !drainService.isDraining();
+
+        // Adjust client socket if client request has keep alive connection header.
+        if (keepAlive) {
+            client.setKeepAlive(true);
+            client.setTcpNoDelay(true);
+            client.setSoTimeout((int) (TIMEOUT * 1000));
+        }
+        // Answer clients over their request rate with 429
+        String hostFromRequest = requestHeader.getHeaderWithKey("Host");
+        if (!synthetic && !rateLimiter.tryAcquireRequest(client.getInetAddress(), hostFromRequest)) {
+            log("[%s] Rate limited %s\n", new Date(), client.getInetAddress().getHostAddress());
+            outputStream.write(rateLimiter.getTooManyRequests());
+            outputStream.flush();
+            return false;
+        }
+        if (!synthetic) {
+            outputStream.setByteLimit(rateLimiter.getByteBucket(client.getInetAddress(), hostFromRequest));
+        }
+        // Status and health requests are answered locally, whatever host they name
+        if (proxyService.isProxyHost(hostFromRequest) && !statusService.isStatusPort(client.getLocalPort())) {
+            return proxyRequest(requestHeader, keepAlive, queueDelay);
+        }
+
+        PathResolveEvent resolveEvent = new PathResolveEvent();
+        resolveEvent.begin();
+        FileService fileService = getRequestedFile(requestHeader);
+        resolveEvent.end();
+        if (resolveEvent.shouldCommit()) {
+            resolveEvent.setRequest(requestHeader);
+            resolveEvent.setResponse(fileService.fileExists ? 200 : 500, fileService.getFileLength());
+            resolveEvent.commit();
+        }
+
+        // Throw exception on invalid range header
+        if (!requestHeader.validRangeValues(fileService.getFileLength())) {
+            throw new Exception("Invalid range request headers");
+        }
+        // Consecutive ranges of a client are prefetched, across its connections
+        if (!synthetic) {
+            fileService.setReadAheadClient(client.getInetAddress().getHostAddress());
+        }
+
+        // Answer right away with 503 instead of queueing behind everyone else
+        AdmissionController.Priority priority = admissionController.classify(requestHeader, fileService);
+        if (!admissionController.tryAdmit(priority, queueDelay)) {
+            log("[%s] Shed %s request\n", new Date(), priority);
+            outputStream.write(admissionController.getServiceUnavailable());
+            outputStream.flush();
+            return false;
+        }
+
+        try {
+            HttpResponse httpResponse = new HttpResponse(requestHeader, fileService, outputStream, keepAlive);
+
+            HeaderWriteEvent headerEvent = new HeaderWriteEvent();
+            headerEvent.begin();
+            httpResponse.writeResponseHeader();
+            commitPhase(headerEvent, requestHeader, httpResponse);
+
+            BodyWriteEvent bodyEvent = new BodyWriteEvent();
+            bodyEvent.begin();
+            httpResponse.writeResponseBody();
+            commitPhase(bodyEvent, requestHeader, httpResponse);
+        } finally {
+            admissionController.complete();
+            rateLimiter.recordThrottled(outputStream.takeThrottledNanos());
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Serves one request of a proxied host by forwarding it to an upstream server.
+     *
+     * @param requestHeader the parsed request header.
+     * @param keepAlive     whether the client asked to keep the connection alive.
+     * @param queueDelay    the time the connection waited for a worker, 0 for keep-alive requests.
+     * @return true if the connection is kept alive for another request, false otherwise.
+     * @throws IOException if the client connection fails, or the upstream fails during the response.
+     */
+    private boolean proxyRequest(RequestHeader requestHeader, boolean keepAlive, long queueDelay) throws IOException {
+        if (!admissionController.tryAdmit(AdmissionController.Priority.NORMAL, queueDelay)) {
+            log("[%s] Shed %s request\n", new Date(), AdmissionController.Priority.NORMAL);
+            outputStream.write(admissionController.getServiceUnavailable());
+            outputStream.flush();
+            return false;
+        }
+
+        try {
+            return proxyService.forward(requestHeader, requestReader, outputStream, keepAlive,
+                    client.getInetAddress().getHostAddress(), (tlsService != null) ? "https" : "http");
+        } finally {
+            admissionController.complete();
+            rateLimiter.recordThrottled(outputStream.takeThrottledNanos());
+        }
+    }
+
+    /**
+     * Marks the connection busy with a request, so draining lets the response finish.
+     *
+     * @return true if the request may be served, false if the connection was closed for draining.
+     */
+    private synchronized boolean beginRequest() {
+        if (closedByDrain) {
+            return false;
+        }
+        busy = true;
+        return true;
+    }
+
+    /**
+     * Marks the connection idle again.
+     */
+    private synchronized void endRequest() {
+        busy = false;
+    }
+
+    /**
+     * Closes the connection if it is waiting for its next keep-alive request.
+     * Busy connections finish their response and close themselves.
+     */
+    public void closeIfIdle() {
+        synchronized (this) {
+            if (busy) {
+                return;
+            }
+            closedByDrain = true;
+        }
+        abort();
+    }
+
+    /**
+     * Closes the connection, interrupting whatever it is reading or writing.
+     */
+    public void forceClose() {
+        synchronized (this) {
+            closedByDrain = true;
+        }
+        abort();
+    }
+
+    /**
+     * Closes the connection of a client too slow to keep its worker, interrupting its read or write.
+     *
+     * @param reason what the client was too slow at.
+     */
+    public void closeSlowClient(String reason) {
+        closedAsSlow = true;
+        System.out.format("[%s] Closed slow client %s - %s\n", new Date(), client.getInetAddress().getHostAddress(), reason);
+        abort();
+    }
+
+    /**
+     * Resets the socket from another thread than its worker, without holding the connection's lock.
+     * With a zero linger a TLS socket skips its close_notify instead of waiting for the record lock,
+     * which a write blocked on the client holds.
+     */
+    private void abort() {
+        try {
+            client.setSoLinger(true, 0);
+            client.close();
+        } catch (IOException e) {
+            System.err.printf("[%s] %s\n", e.getClass(), e.getMessage());
+        }
+    }
+
+    /**
+     * Marks the connection as generated by the server itself, it is neither logged nor rate limited.
+     *
+     * @param synthetic whether the connection is synthetic.
+     */
+    public void setSynthetic(boolean synthetic) {
+        this.synthetic = synthetic;
+    }
+
+    private void log(String format, Object... args) {
+        if (!synthetic) {
+            System.out.format(format, args);
+        }
+    }
+
+    /**
+     * Ends and commits a request phase event if it is enabled and over its threshold.
+     *
+     * @param event         the begun phase event.
+     * @param requestHeader the parsed request header.
+     * @param httpResponse  the response being written.
+     */
+    private void commitPhase(RequestPhaseEvent event, RequestHeader requestHeader, HttpResponse httpResponse) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.setRequest(requestHeader);
+            event.setResponse(httpResponse.getStatusCode(), httpResponse.getContentLength());
+            event.commit();
         }
     }
 
@@ -89,15 +386,61 @@ public class ClientServer implements Runnable {
      */
     private FileService getRequestedFile(RequestHeader requestHeader) throws ConfigurationException, IOException {
         String requestedFile = requestHeader.getRequestedFile();
+        if (statusService.isStatusPort(client.getLocalPort())) {
+            if (statusService.isStatusPath(requestedFile)) {
+                return statusService.getFileService(requestedFile);
+            }
+            return new FileService(
+                    "", client.getLocalPort(), SERVER_ROOT + SERVER_ASSETS_DIR + '/', FILE_NOT_FOUND, DEFAULT_FILE, false
+            );
+        }
+
         String hostFromRequest = requestHeader.getHeaderWithKey("Host");
+        if (siteBundleService.isBundleHost(hostFromRequest)) {
+            return getBundledFile(requestHeader, hostFromRequest, requestedFile);
+        }
         String documentRoot = getDocumentRoot(hostFromRequest, requestedFile);
 
         boolean fileExists = fileExist(documentRoot + requestedFile);
         String fetchedFile = (fileExists) ? requestedFile : FILE_NOT_FOUND;
         documentRoot = (fileExists) ? documentRoot : (SERVER_ROOT + SERVER_ASSETS_DIR + '/');
 
+        FileService fileService = new FileService(
+                hostFromRequest, client.getLocalPort(), documentRoot, fetchedFile, DEFAULT_FILE, fileExists
+        );
+        if (acceptsGzip(requestHeader)) {
+            fileService.acceptGzip();
+        }
+        return fileService;
+    }
+
+    /**
+     * Checks if a compressed variant may be served. Ranges refer to the file's own bytes, so they never get one.
+     *
+     * @param requestHeader
+     * @return boolean
+     */
+    private boolean acceptsGzip(RequestHeader requestHeader) {
+        String acceptEncoding = requestHeader.getHeaderWithKey("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.contains("gzip") && !requestHeader.doesHeaderHaveKey("Range");
+    }
+
+    /**
+     * Create file service of a host served from a site bundle.
+     *
+     * @param requestHeader
+     * @param hostFromRequest
+     * @param requestedFile
+     * @return FileService
+     * @throws IOException
+     */
+    private FileService getBundledFile(RequestHeader requestHeader, String hostFromRequest, String requestedFile) throws IOException {
+        FileService fileService = siteBundleService.getFileService(hostFromRequest, requestedFile, acceptsGzip(requestHeader));
+        if (fileService != null) {
+            return fileService;
+        }
         return new FileService(
-                hostFromRequest, configService.getPort(), documentRoot, fetchedFile, DEFAULT_FILE, fileExists
+                hostFromRequest, client.getLocalPort(), SERVER_ROOT + SERVER_ASSETS_DIR + '/', FILE_NOT_FOUND, DEFAULT_FILE, false
         );
     }
 
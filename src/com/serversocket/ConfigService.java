@@ -2,6 +2,8 @@ package com.serversocket;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class ConfigService {
     private String IP;
@@ -50,8 +52,10 @@ public class ConfigService {
     /**
      * Appends a line from the config file to the settings map.
      *
+     * Blank lines and lines starting with "#" are skipped.
+     *
      * @param line the line to be appended.
-     * @return true if the line was successfully appended, false otherwise.
+     * @return true if there may be more lines to read, false at the end of the file.
      */
     private boolean appendLineToSettings(String line) {
         if (line == null) {
@@ -59,14 +63,13 @@ public class ConfigService {
         }
 
         int colonIndex = line.indexOf(":");
-        if (colonIndex != -1) {
+        if (colonIndex != -1 && !line.startsWith("#")) {
             String key = line.substring(0, colonIndex);
-            String value = line.substring(colonIndex + 2);
+            String value = line.substring(Math.min(colonIndex + 2, line.length()));
             configSettings.put(key, value);
-            return true;
         }
 
-        return false;
+        return true;
     }
 
     /**
@@ -97,6 +100,87 @@ public class ConfigService {
         return configSettings.get(key);
     }
 
+    /**
+     * Retrieves the configuration value associated with the given key, falling back to a default.
+     *
+     * @param key          the configuration key.
+     * @param defaultValue the value returned when the key is missing or empty.
+     * @return the configuration value.
+     */
+    public String getSettingsWithKey(String key, String defaultValue) {
+        String value = configSettings.get(key);
+        return (value == null || value.isEmpty()) ? defaultValue : value;
+    }
+
+    /**
+     * Retrieves the configuration value associated with the given key as an integer.
+     *
+     * @param key          the configuration key.
+     * @param defaultValue the value returned when the key is missing or empty.
+     * @return the configuration value.
+     */
+    public int getIntSettingsWithKey(String key, int defaultValue) {
+        String value = getSettingsWithKey(key, null);
+        return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Retrieves the configuration value associated with the given key as a boolean.
+     *
+     * @param key          the configuration key.
+     * @param defaultValue the value returned when the key is missing or empty.
+     * @return the configuration value.
+     */
+    public boolean getBooleanSettingsWithKey(String key, boolean defaultValue) {
+        String value = getSettingsWithKey(key, null);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Retrieves the virtual hosts, i.e. the settings whose value is a document root directory.
+     *
+     * @return the document root of each host, sorted by host.
+     */
+    public Map<String, String> getVirtualHosts() {
+        Map<String, String> virtualHosts = new TreeMap<>();
+        for (Map.Entry<String, String> setting : configSettings.entrySet()) {
+            if (new File(setting.getValue()).isDirectory()) {
+                virtualHosts.put(setting.getKey(), setting.getValue());
+            }
+        }
+        return virtualHosts;
+    }
+
+    /**
+     * Retrieves the virtual hosts served from a site bundle, i.e. the settings whose value is a bundle file.
+     *
+     * @return the bundle file of each host, sorted by host.
+     */
+    public Map<String, String> getBundleHosts() {
+        Map<String, String> bundleHosts = new TreeMap<>();
+        for (Map.Entry<String, String> setting : configSettings.entrySet()) {
+            if (setting.getValue().endsWith(SiteBundle.EXTENSION)) {
+                bundleHosts.put(setting.getKey(), setting.getValue());
+            }
+        }
+        return bundleHosts;
+    }
+
+    /**
+     * Retrieves the virtual hosts proxied to upstream servers, i.e. the settings whose value starts with "proxy ".
+     *
+     * @return the upstream list of each host, sorted by host.
+     */
+    public Map<String, String> getProxyHosts() {
+        Map<String, String> proxyHosts = new TreeMap<>();
+        for (Map.Entry<String, String> setting : configSettings.entrySet()) {
+            if (setting.getValue().startsWith(ProxyService.PROXY_PREFIX)) {
+                proxyHosts.put(setting.getKey(), setting.getValue());
+            }
+        }
+        return proxyHosts;
+    }
+
     /**
      * Checks if the loaded configurations contain the specified key.
      *
@@ -0,0 +1,359 @@
+package com.serversocket;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Computes the folder sizes shown in directory listings without blocking them.
+ * The first listing under a document root starts a fork/join walk of the whole root, which records the size of every
+ * directory. The directories are then watched, and a changed directory is listed again on its own, so sizes are
+ * updated by the difference instead of walking again. Until its walk finishes, a folder's size is pending.
+ */
+public class DirectorySizeService {
+    public static final String MAX_WALKS_KEY = "DIRSIZE_MAX_WALKS";
+    public static final String PARALLELISM_KEY = "DIRSIZE_PARALLELISM";
+
+    public static final long PENDING = -1;
+
+    private static final int DEFAULT_MAX_WALKS = 2; // 0 turns folder sizes off
+    private static final int DEFAULT_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    // Events arriving within this delay are handled together, so a burst of writes lists a directory once.
+    private static final long COALESCE_DELAY = 100;
+
+    private static final DirectorySizeService INSTANCE = new DirectorySizeService();
+
+    // By absolute path, guarded by this.
+    private final HashMap<Path, Node> nodes;
+    // The configured document roots, the only trees walked.
+    private Set<Path> documentRoots = Collections.emptySet();
+
+    private volatile Semaphore walks;
+    private int maxWalks;
+    private ForkJoinPool walkPool;
+    private WatchService watchService;
+
+    private final LongAdder walksStarted = new LongAdder();
+    private final LongAdder walksDeferred = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder unwatched = new LongAdder();
+
+    /**
+     * A directory, with the bytes of its own files and the total of its tree.
+     */
+    private static class Node {
+        final Path dir;
+        long files;
+        long total;
+        Set<String> subdirs = Collections.emptySet();
+        WatchKey watchKey;
+        volatile boolean complete;
+
+        Node(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * Walks a directory tree, listing each directory and forking the walks of its subdirectories.
+     */
+    private class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+
+        WalkTask(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        protected void compute() {
+            // Watch before listing, so no change after the listing is missed
+            watch(node);
+            List<WalkTask> subtasks = new ArrayList<>();
+            for (Node subdir : refresh(node)) {
+                subtasks.add(new WalkTask(subdir));
+            }
+            invokeAll(subtasks);
+            node.complete = true;
+        }
+    }
+
+    private DirectorySizeService() {
+        this.nodes = new HashMap<>();
+    }
+
+    /**
+     * Retrieves the process-wide directory size service.
+     *
+     * @return the directory size service.
+     */
+    public static DirectorySizeService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Applies the walk limits from the configuration and starts watching for changes.
+     *
+     * @param configService the loaded server configuration.
+     * @throws IOException If the file system cannot be watched.
+     */
+    public void configure(ConfigService configService) throws IOException {
+        this.maxWalks = configService.getIntSettingsWithKey(MAX_WALKS_KEY, DEFAULT_MAX_WALKS);
+        if (maxWalks <= 0) {
+            return;
+        }
+
+        Set<Path> roots = new HashSet<>();
+        for (String documentRoot : configService.getVirtualHosts().values()) {
+            roots.add(Path.of(documentRoot).toAbsolutePath().normalize());
+        }
+        this.documentRoots = roots;
+
+        this.walkPool = new ForkJoinPool(configService.getIntSettingsWithKey(PARALLELISM_KEY, DEFAULT_PARALLELISM));
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread watcher = new Thread(this::watchLoop, "directory-size-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        this.walks = new Semaphore(maxWalks);
+    }
+
+    /**
+     * Checks if folder sizes are computed.
+     *
+     * @return true if listings show folder sizes, false otherwise.
+     */
+    public boolean isEnabled() {
+        return walks != null;
+    }
+
+    /**
+     * Checks if a directory is the document root of a virtual host, whose folders may be sized.
+     * Other listings, e.g. the server's own assets for unknown hosts, are never walked.
+     *
+     * @param root the root the listing is served from.
+     * @return true if folder sizes of the root are computed, false otherwise.
+     */
+    public boolean isDocumentRoot(Path root) {
+        return documentRoots.contains(root.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Retrieves the size of a directory's tree, starting the walk of its document root if it is not known yet.
+     * Never waits for a walk: when the walk limit is reached, the next listing tries again.
+     * A directory a finished walk did not record, e.g. unreadable or not reached by the watcher yet, counts as empty.
+     *
+     * @param root the document root the directory is in, see {@link #isDocumentRoot(Path)}.
+     * @param dir  the directory, not a link to one.
+     * @return the size in bytes, or {@link #PENDING} if it is not known yet.
+     */
+    public long getSize(Path root, Path dir) {
+        root = root.toAbsolutePath().normalize();
+        dir = dir.toAbsolutePath().normalize();
+
+        Node rootNode;
+        synchronized (this) {
+            Node node = nodes.get(dir);
+            if (node != null) {
+                return node.complete ? node.total : PENDING;
+            }
+            for (Path tracked = dir.getParent(); tracked != null; tracked = tracked.getParent()) {
+                Node ancestor = nodes.get(tracked);
+                if (ancestor != null) {
+                    // Still being walked, or walked without it, unreadable or created since, and then empty until refreshed
+                    return ancestor.complete ? 0 : PENDING;
+                }
+            }
+            if (!walks.tryAcquire()) {
+                walksDeferred.increment();
+                return PENDING;
+            }
+            rootNode = new Node(root);
+            nodes.put(root, rootNode);
+        }
+
+        walksStarted.increment();
+        walkPool.execute(() -> {
+            try {
+                new WalkTask(rootNode).invoke();
+            } finally {
+                walks.release();
+            }
+        });
+        return PENDING;
+    }
+
+    /**
+     * Retrieves a summary of the directory size counters.
+     *
+     * @return the directory size statistics.
+     */
+    public synchronized String getStats() {
+        int pending = 0;
+        for (Node node : nodes.values()) {
+            pending += node.complete ? 0 : 1;
+        }
+        return String.format("dirs=%d, pending=%d, walking=%d, walks=%d, deferred=%d, refreshes=%d, unwatched=%d",
+                nodes.size(), pending, (walks == null) ? 0 : maxWalks - walks.availablePermits(), walksStarted.sum(),
+                walksDeferred.sum(), refreshes.sum(), unwatched.sum());
+    }
+
+    /**
+     * Lists a directory and applies the difference with its previous listing: the change in its own files is added to
+     * it and its ancestors, removed subdirectories are dropped with their trees, and new ones are added to be walked.
+     * Listings of one directory are serialized, so the latest listing always wins.
+     *
+     * @return the new subdirectories to walk.
+     */
+    private List<Node> refresh(Node node) {
+        synchronized (node) {
+            long files = 0;
+            Set<String> subdirs = new HashSet<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(node.dir)) {
+                for (Path child : stream) {
+                    try {
+                        BasicFileAttributes attributes = Files.readAttributes(
+                                child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS
+                        );
+                        if (attributes.isDirectory()) {
+                            subdirs.add(child.getFileName().toString());
+                        } else if (attributes.isRegularFile()) {
+                            files += attributes.size();
+                        }
+                    } catch (NoSuchFileException e) {
+                        // Deleted since it was listed
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // Deleted or unreadable, it counts as empty until its parent drops it
+            }
+
+            List<Node> added = new ArrayList<>();
+            synchronized (this) {
+                if (nodes.get(node.dir) != node) {
+                    return added;
+                }
+                addToTree(node.dir, files - node.files);
+                node.files = files;
+
+                for (String name : node.subdirs) {
+                    if (!subdirs.contains(name)) {
+                        removeTree(node.dir.resolve(name));
+                    }
+                }
+                for (String name : subdirs) {
+                    if (node.subdirs.contains(name)) {
+                        continue;
+                    }
+                    Path path = node.dir.resolve(name);
+                    Node existing = nodes.get(path);
+                    if (existing != null) {
+                        // The root of an earlier walk, now inside this tree
+                        addToTree(node.dir, existing.total);
+                        continue;
+                    }
+                    Node subdir = new Node(path);
+                    nodes.put(path, subdir);
+                    added.add(subdir);
+                }
+                node.subdirs = subdirs;
+            }
+            return added;
+        }
+    }
+
+    /**
+     * Adds a size difference to a directory and its known ancestors. Must hold the lock.
+     */
+    private void addToTree(Path dir, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        for (Path path = dir; path != null; path = path.getParent()) {
+            Node node = nodes.get(path);
+            if (node == null) {
+                return;
+            }
+            node.total += delta;
+        }
+    }
+
+    /**
+     * Removes a deleted directory and its tree, subtracting its size from its ancestors. Must hold the lock.
+     */
+    private void removeTree(Path dir) {
+        Node node = nodes.get(dir);
+        if (node == null) {
+            return;
+        }
+        addToTree(dir.getParent(), -node.total);
+        drop(node);
+    }
+
+    private void drop(Node node) {
+        nodes.remove(node.dir);
+        if (node.watchKey != null) {
+            node.watchKey.cancel();
+        }
+        for (String name : node.subdirs) {
+            Node subdir = nodes.get(node.dir.resolve(name));
+            if (subdir != null) {
+                drop(subdir);
+            }
+        }
+    }
+
+    private void watch(Node node) {
+        try {
+            node.watchKey = node.dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        } catch (IOException e) {
+            // Out of watches, or deleted meanwhile: the size may go stale
+            unwatched.increment();
+        }
+    }
+
+    /**
+     * Lists the directories that changed again, walking the directories created in them.
+     * Events only mark their directory as changed, and those of a short burst are handled together.
+     */
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<Path> changed = new LinkedHashSet<>();
+                do {
+                    key.pollEvents();
+                    changed.add((Path) key.watchable());
+                    // An invalid key belongs to a deleted directory, its parent's event removes it
+                    key.reset();
+                } while ((key = watchService.poll(COALESCE_DELAY, TimeUnit.MILLISECONDS)) != null);
+
+                for (Path dir : changed) {
+                    Node node;
+                    synchronized (this) {
+                        node = nodes.get(dir);
+                    }
+                    if (node == null) {
+                        continue;
+                    }
+                    refreshes.increment();
+                    // New trees are walked on the pool, a large copy must not hold up the other changes
+                    for (Node subdir : refresh(node)) {
+                        walkPool.execute(new WalkTask(subdir));
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            System.out.format("[%s] Directory size watcher stopped\n", new Date());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.serversocket;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class DrainService {
+    public static final String DRAIN_TIMEOUT_KEY = "DRAIN_TIMEOUT";
+
+    private static final int DEFAULT_DRAIN_TIMEOUT = 30; // in seconds
+
+    private final int drainTimeout;
+    private final List<ServerSocket> listeners;
+    private final Set<ClientServer> connections;
+
+    private volatile boolean draining;
+
+    /**
+     * Constructs a DrainService with the configured drain deadline.
+     *
+     * @param configService the loaded server configuration.
+     */
+    public DrainService(ConfigService configService) {
+        this.drainTimeout = configService.getIntSettingsWithKey(DRAIN_TIMEOUT_KEY, DEFAULT_DRAIN_TIMEOUT);
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.connections = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Adds a server socket to close when draining starts.
+     *
+     * @param serverSocket the listening socket.
+     */
+    public void addListener(ServerSocket serverSocket) {
+        listeners.add(serverSocket);
+    }
+
+    /**
+     * Tracks an open connection until it is unregistered.
+     *
+     * @param connection the connection.
+     */
+    public void register(ClientServer connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * Stops tracking a closed connection.
+     *
+     * @param connection the connection.
+     */
+    public void unregister(ClientServer connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Checks if the server is shutting down, connections must not be kept alive then.
+     *
+     * @return true if draining has started, false otherwise.
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Drains the server: stops accepting, closes idle keep-alive connections and lets in-flight responses
+     * finish until the deadline, after which the remaining connections are closed.
+     *
+     * @param workers the worker pool running the connections.
+     */
+    public void drain(ExecutorService workers) {
+        draining = true;
+        System.out.format("[%s] Draining %d connections\n", new Date(), connections.size());
+
+        for (ServerSocket listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                System.err.printf("[%s] %s\n", e.getClass(), e.getMessage());
+            }
+        }
+        for (ClientServer connection : connections) {
+            connection.closeIfIdle();
+        }
+        workers.shutdown();
+
+        try {
+            if (!workers.awaitTermination(drainTimeout, TimeUnit.SECONDS)) {
+                System.out.format("[%s] Drain deadline passed, closing %d connections\n", new Date(), connections.size());
+                for (ClientServer connection : connections) {
+                    connection.forceClose();
+                }
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.format("[%s] Drained\n", new Date());
+    }
+}
@@ -0,0 +1,343 @@
+package com.serversocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+public class FileCache {
+    public static final String MAX_BYTES_KEY = "CACHE_MAX_BYTES";
+    public static final String MAX_FILE_SIZE_KEY = "CACHE_MAX_FILE_SIZE";
+    public static final String MAX_ENTRIES_KEY = "CACHE_MAX_ENTRIES";
+
+    private static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final int DEFAULT_MAX_FILE_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    // Keep a gzip variant only when it saves at least a tenth of the file.
+    private static final double MAX_GZIP_RATIO = 0.9;
+    static final int ETAG_HEX_LENGTH = 16;
+
+    private static final FileCache INSTANCE = new FileCache();
+
+    // Least recently used first, guarded by this.
+    private final LinkedHashMap<String, Entry> entries;
+
+    // Contents by SHA-256, one copy for every path with the same bytes, guarded by this.
+    private final HashMap<String, Blob> blobs;
+    private long cachedBytes;
+    private long logicalBytes;
+
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sharedLoads = new LongAdder();
+
+    public static class Entry {
+        private final long lastModified;
+        private final long length;
+        private final String contentType;
+        private final Blob blob;
+
+        Entry(long lastModified, long length, String contentType, Blob blob) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.contentType = contentType;
+            this.blob = blob;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Retrieves the cached file content.
+         *
+         * @return the file bytes, or null if the file is too large to be cached.
+         */
+        public byte[] getData() {
+            return (blob == null) ? null : blob.data;
+        }
+
+        /**
+         * Retrieves the entity tag derived from the content hash.
+         *
+         * @return the ETag, or null if the file is too large to be cached.
+         */
+        public String getETag() {
+            return (blob == null) ? null : blob.etag;
+        }
+
+        /**
+         * Retrieves the gzip variant of the content, compressed on first use and shared by identical files.
+         *
+         * @return the gzip bytes, or null if the file is not cached or does not compress well.
+         */
+        public byte[] getGzipData() {
+            return (blob == null) ? null : INSTANCE.getGzipData(blob);
+        }
+    }
+
+    /**
+     * A file content stored once, with the data derived from it.
+     */
+    private static class Blob {
+        final String hash;
+        final byte[] data;
+        final String etag;
+        volatile byte[] gzipData;
+        boolean gzipChecked;
+
+        // Entries pointing at the blob, guarded by the cache.
+        int references;
+
+        Blob(String hash, byte[] data) {
+            this.hash = hash;
+            this.data = data;
+            this.etag = "\"" + hash.substring(0, ETAG_HEX_LENGTH) + "\"";
+        }
+    }
+
+    private FileCache() {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.blobs = new HashMap<>();
+    }
+
+    /**
+     * Retrieves the process-wide file cache.
+     *
+     * @return the file cache.
+     */
+    public static FileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Applies the cache limits from the configuration.
+     *
+     * @param configService the loaded server configuration.
+     */
+    public void configure(ConfigService configService) {
+        this.maxBytes = configService.getIntSettingsWithKey(MAX_BYTES_KEY, DEFAULT_MAX_BYTES);
+        this.maxFileSize = configService.getIntSettingsWithKey(MAX_FILE_SIZE_KEY, DEFAULT_MAX_FILE_SIZE);
+        this.maxEntries = configService.getIntSettingsWithKey(MAX_ENTRIES_KEY, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Retrieves the metadata, and the content of small files, of the file at the given path.
+     * The entry is reloaded when the file's modification time or size changed. The content is hashed then,
+     * and files with the same bytes share one copy whatever their path or virtual host.
+     *
+     * @param path the file path.
+     * @return the cache entry.
+     * @throws IOException If the file cannot be read.
+     */
+    public Entry get(String path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(Path.of(path), BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long length = attributes.size();
+
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                hits.increment();
+                return entry;
+            }
+        }
+        misses.increment();
+
+        // Probe, read and hash outside the lock, a concurrent miss on the same file only costs a duplicate read.
+        String contentType = FileService.probeContentType(path);
+        if (length > maxFileSize) {
+            Entry entry = new Entry(lastModified, length, contentType, null);
+            put(path, entry);
+            return entry;
+        }
+
+        byte[] data = Files.readAllBytes(Path.of(path));
+        String hash = toHex(digest(data));
+        if (data.length != length) {
+            // Changed while reading, serve it but let the next request reload it.
+            return new Entry(lastModified, data.length, contentType, new Blob(hash, data));
+        }
+
+        synchronized (this) {
+            Blob blob = blobs.get(hash);
+            if (blob == null) {
+                blob = new Blob(hash, data);
+                blobs.put(hash, blob);
+                cachedBytes += data.length;
+            } else {
+                sharedLoads.increment();
+            }
+            blob.references++;
+
+            Entry entry = new Entry(lastModified, length, contentType, blob);
+            put(path, entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Retrieves a summary of the cache counters. The dedup ratio is the cached file bytes over the bytes stored for them.
+     *
+     * @return the cache statistics.
+     */
+    public synchronized String getStats() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        long blobBytes = 0;
+        int gzipVariants = 0;
+        for (Blob blob : blobs.values()) {
+            blobBytes += blob.data.length;
+            gzipVariants += (blob.gzipData != null) ? 1 : 0;
+        }
+        return String.format("entries=%d, blobs=%d, cachedBytes=%d, logicalBytes=%d, bytesSaved=%d, dedupRatio=%.2f, " +
+                        "sharedLoads=%d, gzipVariants=%d, hits=%d, misses=%d, hitRatio=%.1f%%",
+                entries.size(), blobs.size(), cachedBytes, logicalBytes, logicalBytes - blobBytes,
+                (blobBytes == 0) ? 1.0 : (double) logicalBytes / blobBytes, sharedLoads.sum(), gzipVariants,
+                hitCount, misses.sum(), (total == 0) ? 0 : 100.0 * hitCount / total);
+    }
+
+    /**
+     * Adds an entry, and evicts the least recently used entries until both limits hold.
+     * A blob is freed with the last entry pointing at it.
+     */
+    private synchronized void put(String path, Entry entry) {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            release(previous);
+        }
+        if (entry.blob != null) {
+            logicalBytes += entry.blob.data.length;
+        }
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used entries until both limits hold. Must hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((cachedBytes > maxBytes || entries.size() > maxEntries) && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            release(eldest);
+        }
+    }
+
+    /**
+     * Drops an entry's reference to its blob. Must hold the lock.
+     */
+    private void release(Entry entry) {
+        Blob blob = entry.blob;
+        if (blob == null) {
+            return;
+        }
+        logicalBytes -= blob.data.length;
+        if (--blob.references == 0) {
+            blobs.remove(blob.hash);
+            cachedBytes -= blob.data.length;
+            byte[] gzipData = blob.gzipData;
+            if (gzipData != null) {
+                cachedBytes -= gzipData.length;
+            }
+        }
+    }
+
+    /**
+     * Compresses a blob once, counting the variant against the cache size while the blob is cached.
+     * The variant is published and counted under the cache lock, so a release never subtracts bytes that were not added.
+     */
+    private byte[] getGzipData(Blob blob) {
+        synchronized (blob) {
+            if (!blob.gzipChecked) {
+                blob.gzipChecked = true;
+                byte[] gzipData = gzip(blob.data);
+                synchronized (this) {
+                    blob.gzipData = gzipData;
+                    if (gzipData != null && blob.references > 0) {
+                        cachedBytes += gzipData.length;
+                        evict();
+                    }
+                }
+            }
+            return blob.gzipData;
+        }
+    }
+
+    /**
+     * Compresses content, keeping the result only if it is worth serving.
+     *
+     * @param data the content.
+     * @return the gzip bytes, or null if compression saves too little.
+     */
+    static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+            gzipOutputStream.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory compression failed", e);
+        }
+        return (compressed.size() < data.length * MAX_GZIP_RATIO) ? compressed.toByteArray() : null;
+    }
+
+    /**
+     * Derives a strong ETag from content, so unchanged files keep their ETag across reloads and deploys.
+     *
+     * @param data the content.
+     * @return the quoted ETag.
+     */
+    static String getETag(byte[] data) {
+        return "\"" + toHex(digest(data)).substring(0, ETAG_HEX_LENGTH) + "\"";
+    }
+
+    /**
+     * Derives the ETag of a gzip variant from the ETag of its content, since the variant's bytes differ.
+     *
+     * @param etag the quoted ETag of the content.
+     * @return the quoted ETag of the gzip variant.
+     */
+    static String getGzipETag(String etag) {
+        if (etag.endsWith("\"")) {
+            return etag.substring(0, etag.length() - 1) + "-gz\"";
+        }
+        return etag + "-gz";
+    }
+
+    private static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
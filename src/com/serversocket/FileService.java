@@ -1,21 +1,36 @@
 package com.serversocket;
 
+import com.serversocket.jfr.MimeProbeEvent;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 public class FileService {
-    private final int BUFFER_SIZE = 1024;
+    private static final int BUFFER_SIZE = BufferPool.LARGE;
 
     private String fetchedFilePath;
     private String contentType;
     private String contentDisposition;
 
     private long fileLength;
+    private long lastModified;
     private byte[] fileData;
+    private FileCache.Entry cacheEntry;
+    private String readAheadClient;
+
+    // Content of site bundle files, a view of the bundle mapping.
+    private ByteBuffer mappedData;
+    private String contentEncoding;
+    private String etag;
+    private boolean variesByEncoding;
 
     public boolean fileExists;
 
@@ -47,6 +62,43 @@ public class FileService {
         this.fileLength = this.fileData.length;
     }
 
+    /**
+     * Constructs a FileService for content generated by the server itself.
+     *
+     * @param contentType The content type of the data.
+     * @param data        The response body.
+     */
+    public FileService(String contentType, byte[] data) {
+        this.fileExists = true;
+        this.contentType = contentType;
+        this.contentDisposition = "inline";
+        this.fileData = data;
+        this.fileLength = data.length;
+    }
+
+    /**
+     * Constructs a FileService for a file of a site bundle.
+     *
+     * @param entry       The bundle entry.
+     * @param acceptsGzip Whether the precompressed variant may be served.
+     */
+    public FileService(SiteBundle.Entry entry, boolean acceptsGzip) {
+        this.fileExists = true;
+        this.contentType = entry.getContentType();
+        this.etag = entry.getETag();
+        this.variesByEncoding = entry.getGzipData() != null;
+        this.setContentDisposition();
+
+        if (acceptsGzip && variesByEncoding) {
+            this.mappedData = entry.getGzipData();
+            this.contentEncoding = "gzip";
+            this.etag = FileCache.getGzipETag(this.etag);
+        } else {
+            this.mappedData = entry.getData();
+        }
+        this.fileLength = this.mappedData.remaining();
+    }
+
     /**
      * Retrieves all the contents (files and folders) within a given directory.
      *
@@ -66,16 +118,27 @@ public class FileService {
         String rootPath = "/" + path + (path.equals("") ? "" : "/");
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
 
+        // Folder sizes come from the directory size service, and are pending until its walk reaches them
+        DirectorySizeService directorySizeService = DirectorySizeService.getInstance();
+        Path rootDirectory = Path.of(root);
+        boolean sizeFolders = directorySizeService.isEnabled() && directorySizeService.isDocumentRoot(rootDirectory);
+
         // Get each file/folder metadata
         for (File file : listOfFiles) {
             HashMap<String, String> data = new HashMap<>();
-            long sizeInByte = (file.isFile()) ? file.length() : 0;
+            long sizeInByte = 0;
+            if (file.isFile()) {
+                sizeInByte = file.length();
+            } else if (sizeFolders && Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                // Links are not followed by the walk, they stay at 0 like other special files
+                sizeInByte = directorySizeService.getSize(rootDirectory, file.toPath());
+            }
 
             data.put("name", file.getName());
             data.put("path", rootPath + file.getName());
             data.put("lastModified", sdf.format(file.lastModified()));
             data.put("type", (file.isFile()) ? "file" : "folder");
-            data.put("size", Long.toString(sizeInByte)); // in bytes
+            data.put("size", (sizeInByte == DirectorySizeService.PENDING) ? ListBuilder.PENDING_SIZE : Long.toString(sizeInByte)); // in bytes
 
             files.add(data);
         }
@@ -103,28 +166,9 @@ public class FileService {
         return file.isDirectory();
     }
 
-    /**
-     * Calculates the size of a directory.
-     *
-     * @param dir The directory.
-     * @return The size of the directory in bytes.
-     */
-    public static long getDirectorySize(File dir) {
-        long length = 0;
-        File[] files = dir.listFiles();
-        if (files == null) {
-            return length;
-        }
-
-        for (File file : files) {
-            long adder = (file.isFile()) ? file.length() : getDirectorySize(file);
-            length += adder;
-        }
-        return length;
-    }
-
     /**
      * Initializes the FileService by setting the fetched file path and its related properties.
+     * The metadata, and the content of small files, come from the file cache.
      *
      * @param path The path to the fetched file.
      * @throws IOException If an I/O error occurs.
@@ -132,78 +176,240 @@ public class FileService {
     private void initializeByFetchedFilePath(String path) throws IOException {
         this.fetchedFilePath = path;
 
-        this.setFileLength();
-        this.setContentType();
+        FileCache.Entry entry = FileCache.getInstance().get(path);
+        this.fileLength = entry.getLength();
+        this.lastModified = entry.getLastModified();
+        this.contentType = entry.getContentType();
+        this.fileData = entry.getData();
         this.setContentDisposition();
+
+        // Cached files share the ETag and gzip variant of their content with every identical file
+        this.cacheEntry = entry;
+        this.etag = entry.getETag();
+        this.variesByEncoding = this.fileData != null && isCompressible(this.contentType);
+    }
+
+    /**
+     * Switches to the gzip variant of a cached file, if its type compresses and the variant is worth serving.
+     * Must not be used for ranges, which refer to the file's own bytes.
+     */
+    public void acceptGzip() {
+        if (!this.variesByEncoding) {
+            return;
+        }
+        byte[] gzipData = this.cacheEntry.getGzipData();
+        if (gzipData != null) {
+            this.fileData = gzipData;
+            this.fileLength = gzipData.length;
+            this.contentEncoding = "gzip";
+            this.etag = FileCache.getGzipETag(this.etag);
+        }
     }
 
     /**
-     * Sets the length of the fetched file.
+     * Checks if a content type is worth compressing, already compressed formats are not.
      *
-     * @throws IOException If an I/O error occurs.
+     * @param type The content type.
+     * @return true for text, JavaScript, JSON, XML and SVG, false otherwise.
      */
-    private void setFileLength() throws IOException {
-        this.fileLength = Files.size(Path.of(this.fetchedFilePath));
+    private static boolean isCompressible(String type) {
+        return type.startsWith("text/") || type.endsWith("javascript") || type.endsWith("json")
+                || type.endsWith("xml") || type.equals("image/svg+xml");
     }
 
     /**
-     * Sets the content type of the fetched file.
+     * Probes the content type of a file.
      *
+     * @param path The path to the file.
+     * @return The content type, text/plain if it is unknown.
      * @throws IOException If an I/O error occurs.
      */
-    private void setContentType() throws IOException {
-        String type = Files.probeContentType(Path.of(this.fetchedFilePath));
+    public static String probeContentType(String path) throws IOException {
+        MimeProbeEvent event = new MimeProbeEvent();
+        event.begin();
+        String type = Files.probeContentType(Path.of(path));
 
         // Handle Javascript type and set default type to text/plain if mime type isn't found.
         if (type == null || type.equals("")) {
-            File file = new File(this.fetchedFilePath);
+            File file = new File(path);
             String filename = file.getName();
 
             int idx = filename.lastIndexOf(".");
             type = (filename.substring(idx + 1).equals("js")) ? "application/javascript" : "text/plain";
         }
-        this.contentType = type;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.setPath(path);
+            event.commit();
+        }
+        return type;
     }
 
     /**
      * Writes the file data to the output stream.
      *
-     * @param bos The BufferedOutputStream to write the data to.
+     * @param outputStream The OutputStream to write the data to.
      * @throws IOException If an I/O error occurs.
      */
-    public void writeFileData(BufferedOutputStream bos) throws IOException {
+    public void writeFileData(OutputStream outputStream) throws IOException {
         // Write directory list
         if (this.fileData != null) {
-            bos.write(this.fileData, 0, (int) this.fileLength);
-            bos.flush();
+            outputStream.write(this.fileData, 0, (int) this.fileLength);
+            outputStream.flush();
+            return;
+        }
+        if (this.mappedData != null) {
+            writeMappedData(outputStream, 0, this.fileLength - 1);
+            return;
+        }
+        writeFromDisk(outputStream, 0, this.fileLength - 1, false);
+    }
+
+    /**
+     * Writes a range of file data to the output stream, reading through a pooled buffer.
+     *
+     * @param outputStream The OutputStream to write the data to.
+     * @param startIndex   The starting index of the data range.
+     * @param endIndex     The ending index of the data range.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void writeFileData(OutputStream outputStream, long startIndex, long endIndex) throws IOException {
+        // Serve cached content from memory
+        if (this.fileData != null) {
+            outputStream.write(this.fileData, (int) startIndex, (int) (endIndex - startIndex + 1));
+            outputStream.flush();
+            return;
+        }
+        // Copy bundle content out of the mapping
+        if (this.mappedData != null) {
+            writeMappedData(outputStream, startIndex, endIndex);
             return;
         }
-        writeFileData(bos, 0, this.fileLength - 1);
+
+        writeFromDisk(outputStream, startIndex, endIndex, true);
     }
 
     /**
-     * Writes a range of file data to the output stream.
+     * Writes a range of the file from disk, or from the read-ahead chunks for ranges of a tracked client.
+     * The file is only opened if some of the range is not cached.
      *
-     * @param bos        The BufferedOutputStream to write the data to.
-     * @param startIndex The starting index of the data range.
-     * @param endIndex   The ending index of the data range.
+     * @param outputStream The OutputStream to write the data to.
+     * @param startIndex   The starting index of the data range.
+     * @param endIndex     The ending index of the data range.
+     * @param rangeRequest Whether the client asked for the range, only those are tracked for read-ahead.
      * @throws IOException If an I/O error occurs.
      */
-    public void writeFileData(BufferedOutputStream bos, long startIndex, long endIndex) throws IOException {
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(this.fetchedFilePath))) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            long contentLength = endIndex - startIndex + 1;
-            int bytesRead;
+    private void writeFromDisk(OutputStream outputStream, long startIndex, long endIndex, boolean rangeRequest) throws IOException {
+        ReadAheadService readAhead = ReadAheadService.getInstance();
+        boolean readingAhead = rangeRequest && this.readAheadClient != null && readAhead.isEnabled();
+        if (readingAhead) {
+            readAhead.onRange(this.readAheadClient, this.fetchedFilePath, this.lastModified, this.fileLength, startIndex, endIndex);
+        }
 
-            bis.skip(startIndex);
+        ByteBuffer buffer = null;
+        FileChannel channel = null;
+        long fromCache = 0;
+        try {
+            long position = startIndex;
+            while (position <= endIndex) {
+                byte[] chunk = readingAhead ? readAhead.getChunk(this.fetchedFilePath, this.lastModified, position) : null;
+                int chunkOffset = readingAhead ? (int) (position % readAhead.getChunkSize()) : 0;
+                if (chunk != null && chunkOffset < chunk.length) {
+                    int length = (int) Math.min(chunk.length - chunkOffset, endIndex - position + 1);
+                    outputStream.write(chunk, chunkOffset, length);
+                    position += length;
+                    fromCache += length;
+                    continue;
+                }
+
+                // Read up to the next chunk boundary, where a prefetched chunk may take over
+                long pieceEnd = endIndex;
+                if (readingAhead) {
+                    pieceEnd = Math.min(endIndex, position - chunkOffset + readAhead.getChunkSize() - 1);
+                }
+                if (channel == null) {
+                    buffer = BufferPool.getInstance().acquire(BUFFER_SIZE);
+                    channel = FileChannel.open(Path.of(this.fetchedFilePath), StandardOpenOption.READ);
+                }
+                readFromChannel(channel, buffer, outputStream, position, pieceEnd);
+                position = pieceEnd + 1;
+            }
+        } finally {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                BufferPool.getInstance().release(buffer);
+            }
+        }
 
-            while (contentLength > 0) {
-                bytesRead = bis.read(buffer);
-                contentLength -= bytesRead;
-                bos.write(buffer, 0, bytesRead);
+        if (readingAhead) {
+            readAhead.recordServed(fromCache, endIndex - startIndex + 1 - fromCache);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Copies a range of the file to the output stream through a buffer, with positional reads.
+     *
+     * @param channel      The open file.
+     * @param buffer       The buffer to read through.
+     * @param outputStream The OutputStream to write the data to.
+     * @param startIndex   The starting index of the data range.
+     * @param endIndex     The ending index of the data range.
+     * @throws IOException If an I/O error occurs or the file ends before the range.
+     */
+    private void readFromChannel(FileChannel channel, ByteBuffer buffer, OutputStream outputStream, long startIndex, long endIndex) throws IOException {
+        long position = startIndex;
+        long contentLength = endIndex - startIndex + 1;
+
+        while (contentLength > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), contentLength));
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new EOFException("File " + this.fetchedFilePath + " ended before the requested range");
             }
+            outputStream.write(buffer.array(), buffer.arrayOffset(), bytesRead);
+            position += bytesRead;
+            contentLength -= bytesRead;
         }
-        bos.flush();
+    }
+
+    /**
+     * Writes a range of bundle content to the output stream, copying through a pooled buffer.
+     *
+     * @param outputStream The OutputStream to write the data to.
+     * @param startIndex   The starting index of the data range.
+     * @param endIndex     The ending index of the data range.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void writeMappedData(OutputStream outputStream, long startIndex, long endIndex) throws IOException {
+        ByteBuffer source = this.mappedData.duplicate();
+        source.position((int) startIndex).limit((int) endIndex + 1);
+
+        ByteBuffer buffer = BufferPool.getInstance().acquire(BUFFER_SIZE);
+        try {
+            while (source.hasRemaining()) {
+                int length = Math.min(buffer.capacity(), source.remaining());
+                source.get(buffer.array(), buffer.arrayOffset(), length);
+                outputStream.write(buffer.array(), buffer.arrayOffset(), length);
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Tracks the range requests of a client for read-ahead. Without a client, ranges are read straight from disk.
+     *
+     * @param client The client address.
+     */
+    public void setReadAheadClient(String client) {
+        this.readAheadClient = client;
     }
 
     /**
@@ -239,4 +445,31 @@ public class FileService {
     public long getFileLength() {
         return this.fileLength;
     }
+
+    /**
+     * Retrieves the content coding of the served variant.
+     *
+     * @return The content coding, or null if the content is served as is.
+     */
+    public String getContentEncoding() {
+        return this.contentEncoding;
+    }
+
+    /**
+     * Retrieves the entity tag of the content.
+     *
+     * @return The ETag, or null if the file has none.
+     */
+    public String getETag() {
+        return this.etag;
+    }
+
+    /**
+     * Checks if the response depends on the client's Accept-Encoding header.
+     *
+     * @return true if the file has a precompressed variant, false otherwise.
+     */
+    public boolean variesByEncoding() {
+        return this.variesByEncoding;
+    }
 }
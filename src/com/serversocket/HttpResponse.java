@@ -1,7 +1,5 @@
 package com.serversocket;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -11,24 +9,25 @@ public class HttpResponse {
     private final FileService fileService;
     private final SimpleDateFormat sdfGMT;
 
-    private final BufferedWriter bufferedWriter;
-    private final BufferedOutputStream bos;
+    private final PooledOutputStream outputStream;
+    private final boolean keepAlive;
 
     private HashMap<String, String> responseHeader;
 
     private long startIndex;
     private long endIndex;
+    private boolean notModified;
 
     public HttpResponse(
             RequestHeader requestHeader,
             FileService fileService,
-            BufferedWriter bufferedWriter,
-            BufferedOutputStream bos
+            PooledOutputStream outputStream,
+            boolean keepAlive
     ) {
         this.requestHeader = requestHeader;
         this.fileService = fileService;
-        this.bufferedWriter = bufferedWriter;
-        this.bos = bos;
+        this.outputStream = outputStream;
+        this.keepAlive = keepAlive;
         this.sdfGMT = new SimpleDateFormat("EEE, MMM d, yyyy hh:mm:ss a z");
         this.sdfGMT.setTimeZone(TimeZone.getTimeZone("GMT"));
         this.setResponseHeader();
@@ -49,17 +48,39 @@ public class HttpResponse {
         responseHeader.put("Connection", "close");
         responseHeader.put("Server", "WW Server Pro");
 
+        // Bundle and cached files carry an ETag and may have a compressed variant
+        if (fileService.getETag() != null) {
+            responseHeader.put("ETag", fileService.getETag());
+            notModified = matchesETag(requestHeader.getHeaderWithKey("If-None-Match"), fileService.getETag());
+            if (notModified) {
+                responseHeader.remove("Content-Length");
+            }
+        }
+        if (fileService.getContentEncoding() != null) {
+            responseHeader.put("Content-Encoding", fileService.getContentEncoding());
+        }
+        if (fileService.variesByEncoding()) {
+            responseHeader.put("Vary", "Accept-Encoding");
+        }
+
         // Additional headers based on the request
-        if (Objects.equals(requestHeader.getHeaderWithKey("Connection"), "keep-alive")) {
+        if (keepAlive) {
             responseHeader.replace("Connection", "keep-alive");
             responseHeader.put("Keep-Alive", "timeout=" + ClientServer.TIMEOUT + "s, max=1000");
         }
-        if (rangeValues != null) {
+        if (rangeValues != null && !notModified) {
             String startIndexStr = rangeValues.get("startIndex");
             String endIndexStr = rangeValues.get("endIndex");
 
-            startIndex = (startIndexStr.equals("")) ? 0 : Long.parseLong(startIndexStr);
-            endIndex = (endIndexStr.equals("")) ? fileService.getFileLength() : Long.parseLong(endIndexStr);
+            // "bytes=-{n}" asks for the last n bytes, "bytes={start}-" for the rest of the file
+            long fileLength = fileService.getFileLength();
+            if (startIndexStr.equals("")) {
+                startIndex = Math.max(0, fileLength - Long.parseLong(endIndexStr));
+                endIndex = fileLength - 1;
+            } else {
+                startIndex = Long.parseLong(startIndexStr);
+                endIndex = (endIndexStr.equals("")) ? fileLength - 1 : Math.min(Long.parseLong(endIndexStr), fileLength - 1);
+            }
             responseHeader.put("Content-Range", String.format("%s %d-%d/%d",
                     rangeValues.get("unit"), startIndex, endIndex, fileService.getFileLength()
             ));
@@ -67,6 +88,29 @@ public class HttpResponse {
         }
     }
 
+    /**
+     * Checks if an If-None-Match header matches the ETag of the file, using the weak comparison.
+     *
+     * @param ifNoneMatch The If-None-Match header value, may be null.
+     * @param etag        The ETag of the variant served, identity or gzip.
+     * @return true if the client's copy is current, false otherwise.
+     */
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Writes the HTTP response status line.
      * The status line format: HTTP/1.1 {status code} {reason phrase}
@@ -74,10 +118,39 @@ public class HttpResponse {
      */
     private void writeResponseStatus() throws IOException {
         String responseStatus = (fileService.fileExists) ? "200 OK" : "500 Internal Server Error";
-        if (fileService.fileExists && requestHeader.doesHeaderHaveKey("Range")) {
+        if (getStatusCode() == 206) {
             responseStatus = "206 Partial Content";
+        } else if (getStatusCode() == 304) {
+            responseStatus = "304 Not Modified";
         }
-        bufferedWriter.write("HTTP/1.1 " + responseStatus + "\r\n");
+        outputStream.writeAscii("HTTP/1.1 ");
+        outputStream.writeAscii(responseStatus);
+        outputStream.writeAscii("\r\n");
+    }
+
+    /**
+     * Retrieves the response status code.
+     *
+     * @return The status code.
+     */
+    public int getStatusCode() {
+        if (!fileService.fileExists) {
+            return 500;
+        }
+        if (notModified) {
+            return 304;
+        }
+        return requestHeader.doesHeaderHaveKey("Range") ? 206 : 200;
+    }
+
+    /**
+     * Retrieves the number of body bytes the response announces.
+     *
+     * @return The content length.
+     */
+    public long getContentLength() {
+        String contentLength = responseHeader.get("Content-Length");
+        return (contentLength == null) ? 0 : Long.parseLong(contentLength);
     }
 
     /**
@@ -87,21 +160,28 @@ public class HttpResponse {
     public void writeResponseHeader() throws IOException {
         writeResponseStatus();
         for (Map.Entry<String, String> header : responseHeader.entrySet()) {
-            bufferedWriter.write(String.format("%s: %s\r\n", header.getKey(), header.getValue()));
+            outputStream.writeAscii(header.getKey());
+            outputStream.writeAscii(": ");
+            outputStream.writeAscii(header.getValue());
+            outputStream.writeAscii("\r\n");
         }
-        bufferedWriter.write("\r\n");
-        bufferedWriter.flush();
+        outputStream.writeAscii("\r\n");
+        outputStream.flush();
     }
 
     /**
      * Writes the HTTP response body.
      * If the request includes a "Range" header, it writes the specified range of data from the file.
-     * Otherwise, it writes the entire file data.
+     * Otherwise, it writes the entire file data. Not modified responses have no body.
      */
     public void writeResponseBody() throws IOException {
+        if (notModified) {
+            return;
+        }
         if (requestHeader.doesHeaderHaveKey("Range")) {
-            fileService.writeFileData(bos, startIndex, endIndex);
+            fileService.writeFileData(outputStream, startIndex, endIndex);
+            return;
         }
-        fileService.writeFileData(bos);
+        fileService.writeFileData(outputStream);
     }
 }
@@ -16,6 +16,7 @@ public class ListBuilder {
 
     private static final String[] SIZE_SYMBOL_ORDER = {"B", "KB", "MB", "GB"};
     public static final String ICON_DIR = "icons";
+    public static final String PENDING_SIZE = "pending";
 
     public ListBuilder(String domain, int port, String root, ArrayList<HashMap<String, String>> files, String urn) {
         this.domain = domain;
@@ -93,9 +94,11 @@ public class ListBuilder {
             String iconName = (isFile) ? "text.gif" : "folder.gif";
             String iconPath = String.format("/%s/%s", iconUrn, iconName);
 
-            // Get the displayed size.
+            // Get the displayed size, folder sizes may still be computed.
             String size = "-";
-            if (!file.get("size").equals("0")) {
+            if (file.get("size").equals(PENDING_SIZE)) {
+                size = PENDING_SIZE;
+            } else if (!file.get("size").equals("0")) {
                 size = getSize(file.get("size"));
             }
 
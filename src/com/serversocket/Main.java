@@ -1,9 +1,21 @@
 package com.serversocket;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class Main {
+    public static final String WORKER_THREADS_KEY = "WORKER_THREADS";
+
+    private static final int DEFAULT_WORKER_THREADS = 200;
+    private static final int STATUS_WORKER_THREADS = 2;
+
     /**
      * Main method to run the server socket.
      */
@@ -12,29 +24,168 @@ public class Main {
             // Create a configuration service instance
             ConfigService configService = new ConfigService();
 
+            // Apply the shared buffer pool, file cache, read-ahead and folder size settings
+            BufferPool.getInstance().configure(configService);
+            FileCache.getInstance().configure(configService);
+            ReadAheadService.getInstance().configure(configService);
+            DirectorySizeService.getInstance().configure(configService);
+
+            // Create the shared services every connection goes through
+            StatusService statusService = new StatusService(configService);
+            int workerThreads = configService.getIntSettingsWithKey(WORKER_THREADS_KEY, DEFAULT_WORKER_THREADS);
+            AdmissionController admissionController = new AdmissionController(configService, workerThreads);
+            RateLimiter rateLimiter = new RateLimiter(configService);
+            DrainService drainService = new DrainService(configService);
+            SiteBundleService siteBundleService = new SiteBundleService(configService);
+            ProxyService proxyService = new ProxyService(configService);
+            SlowClientGuard slowClientGuard = new SlowClientGuard(configService);
+            statusService.register("admission", admissionController::getStats);
+            statusService.register("ratelimit", rateLimiter::getStats);
+            statusService.register("buffers", BufferPool.getInstance()::getStats);
+            statusService.register("cache", FileCache.getInstance()::getStats);
+            statusService.register("readahead", ReadAheadService.getInstance()::getStats);
+            statusService.register("dirsize", DirectorySizeService.getInstance()::getStats);
+            statusService.register("bundles", siteBundleService::getStats);
+            statusService.register("proxy", proxyService::getStats);
+            statusService.register("slowclients", slowClientGuard::getStats);
+
+            // Connections wait in the queue for a worker, that wait is what admission control measures
+            ThreadPoolExecutor workers = new ThreadPoolExecutor(
+                    workerThreads, workerThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>()
+            );
+            workers.allowCoreThreadTimeOut(true);
+
+            TlsService tlsService = TlsService.isEnabled(configService) ? new TlsService(configService) : null;
+            Function<Socket, ClientServer> httpClients = socket -> new ClientServer(
+                    socket, configService, null, admissionController, rateLimiter, statusService, drainService,
+                    siteBundleService, proxyService, slowClientGuard
+            );
+
+            // Fill the caches and warm up the request path before accepting anyone
+            new WarmupService(configService).warmUp(httpClients);
+
+            // Stop accepting and let in-flight responses finish on SIGTERM
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> drainService.drain(workers)));
+
             // Get the IP address from the configuration service
             InetAddress address = InetAddress.getByName(configService.getIP());
 
+            // Start the HTTPS listener on its own thread if it is configured
+            if (tlsService != null) {
+                statusService.register("tls", tlsService::getStats);
+                ServerSocket httpsSocket = tlsService.createServerSocket(address);
+                drainService.addListener(httpsSocket);
+                Thread httpsListener = new Thread(() -> listen(httpsSocket, "https", workers, admissionController, rateLimiter, drainService,
+                        socket -> new ClientServer(
+                                socket, configService, tlsService, admissionController, rateLimiter, statusService, drainService,
+                                siteBundleService, proxyService, slowClientGuard
+                        )
+                ));
+                httpsListener.start();
+            }
+
+            // Serve the status and health paths on their own listener and workers, never behind the main queue
+            if (statusService.isEnabled()) {
+                ServerSocket statusSocket = new ServerSocket(
+                        statusService.getPort(), 50, InetAddress.getByName(statusService.getAddress())
+                );
+                drainService.addListener(statusSocket);
+                ThreadPoolExecutor statusWorkers = new ThreadPoolExecutor(
+                        STATUS_WORKER_THREADS, STATUS_WORKER_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>()
+                );
+                statusWorkers.allowCoreThreadTimeOut(true);
+                Thread statusListener = new Thread(() -> listen(statusSocket, "http", statusWorkers, null, rateLimiter,
+                        drainService, httpClients));
+                statusListener.start();
+            }
+
             // Create a server socket using the IP address and port from the configuration service
             int port = configService.getPort();
-            try (ServerSocket serverSocket = new ServerSocket(port, 50, address)) {
-                // Print the server's address and port
-                System.out.println("Server started: http://" + configService.getIP() + ":" + port);
-
-                // Continuously listen for incoming client connections
-                while (true) {
-                    // Accept a new client connection
-                    ClientServer client = new ClientServer(serverSocket.accept(), configService);
-
-                    // Create a new thread to handle the client's requests
-                    Thread thread = new Thread(client);
-                    thread.start();
-                }
-            }
+            ServerSocket httpSocket = new ServerSocket(port, 50, address);
+            drainService.addListener(httpSocket);
+            listen(httpSocket, "http", workers, admissionController, rateLimiter, drainService, httpClients);
 
         } catch (Exception e) {
             // Handle configuration errors
             System.err.println("Configuration error: " + e.getMessage());
         }
     }
+
+    /**
+     * Accepts client connections on the given server socket and hands them to the worker pool.
+     *
+     * @param serverSocket  the bound server socket.
+     * @param scheme        the URL scheme served by the socket.
+     * @param workers             the worker pool handling the connections.
+     * @param admissionController the shared admission controller, which sheds connections at accept time, or null.
+     * @param rateLimiter         the shared per-client rate limiter.
+     * @param drainService        the shared drain service, which closes the socket on shutdown.
+     * @param clientFactory       creates the connection handler of an accepted socket.
+     */
+    private static void listen(
+            ServerSocket serverSocket,
+            String scheme,
+            ThreadPoolExecutor workers,
+            AdmissionController admissionController,
+            RateLimiter rateLimiter,
+            DrainService drainService,
+            Function<Socket, ClientServer> clientFactory
+    ) {
+        try (serverSocket) {
+            // Print the server's address and port
+            System.out.println("Server started: " + scheme + "://" +
+                    serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort());
+
+            // Continuously listen for incoming client connections
+            while (true) {
+                // Accept a new client connection
+                Socket socket = serverSocket.accept();
+
+                // Shed while overloaded before the connection waits in the queue, answering late would not help
+                if (admissionController != null && !admissionController.tryAdmitConnection(workers.getQueue().size())) {
+                    rejectConnection(socket, admissionController.getServiceUnavailable(), scheme.equals("http"));
+                    continue;
+                }
+
+                // Refuse clients over their connection limit before they take a worker
+                if (!rateLimiter.tryOpenConnection(socket.getInetAddress())) {
+                    rejectConnection(socket, rateLimiter.getTooManyRequests(), scheme.equals("http"));
+                    continue;
+                }
+
+                // Queue the client's requests for the next free worker
+                try {
+                    workers.execute(clientFactory.apply(socket));
+                } catch (RejectedExecutionException e) {
+                    // Accepted while the workers were shutting down
+                    rateLimiter.closeConnection(socket.getInetAddress());
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            if (drainService.isDraining()) {
+                System.out.println("Server stopped: " + scheme);
+                return;
+            }
+            System.err.println("Listener error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes a refused connection, answering with the refusal on plaintext sockets.
+     * TLS sockets are closed without a response, the handshake would cost more than the refusal.
+     *
+     * @param socket    the refused socket.
+     * @param response  the pre-encoded refusal, 429 or 503.
+     * @param plaintext whether the socket is plaintext.
+     */
+    private static void rejectConnection(Socket socket, byte[] response, boolean plaintext) {
+        try (socket) {
+            if (plaintext) {
+                socket.getOutputStream().write(response);
+            }
+        } catch (IOException e) {
+            System.err.printf("[%s] %s\n", e.getClass(), e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,171 @@
+package com.serversocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+public class PooledOutputStream extends OutputStream {
+    private final OutputStream outputStream;
+    private ByteBuffer buffer;
+    private final byte[] bytes;
+    private final int offset;
+    private final int capacity;
+
+    private int count;
+    private long bytesWritten;
+    private TokenBucket byteLimit;
+    private long throttledNanos;
+
+    // Read by the slow client guard while the connection's thread writes, 0 when not writing.
+    private volatile long writeStartedNanos;
+    private volatile int writeLength;
+
+    /**
+     * Constructs a PooledOutputStream that buffers through a buffer borrowed from the buffer pool.
+     *
+     * @param outputStream the client output stream.
+     */
+    public PooledOutputStream(OutputStream outputStream) {
+        this.outputStream = outputStream;
+        this.buffer = BufferPool.getInstance().acquire(BufferPool.MEDIUM);
+        this.bytes = buffer.array();
+        this.offset = buffer.arrayOffset();
+        this.capacity = buffer.capacity();
+        this.count = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == capacity) {
+            flushBuffer();
+        }
+        bytes[offset + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // Large writes skip the copy, the caller's chunk is already big enough for the socket.
+        if (len >= capacity) {
+            flushBuffer();
+            throttle(len);
+            writeStream(b, off, len);
+            return;
+        }
+        if (len > capacity - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, bytes, offset + count, len);
+        count += len;
+    }
+
+    /**
+     * Writes a string of header text, one byte per character.
+     *
+     * @param text the ASCII text to write.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void writeAscii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            write(text.charAt(i));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        outputStream.flush();
+    }
+
+    /**
+     * Throttles the bytes sent to the socket with the given bucket, or stops throttling if null.
+     *
+     * @param byteLimit the byte bucket of the client.
+     */
+    public void setByteLimit(TokenBucket byteLimit) {
+        this.byteLimit = byteLimit;
+    }
+
+    /**
+     * Retrieves the number of bytes sent to the socket so far.
+     *
+     * @return the bytes written.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Retrieves when the write in progress started.
+     *
+     * @return the start of the blocked write as System.nanoTime(), or 0 when not writing.
+     */
+    public long getWriteStartedNanos() {
+        return writeStartedNanos;
+    }
+
+    /**
+     * Retrieves the length of the last write started.
+     *
+     * @return the bytes of the write.
+     */
+    public int getWriteLength() {
+        return writeLength;
+    }
+
+    /**
+     * Retrieves the time spent throttled since the last call, and resets it.
+     *
+     * @return the time throttled in nanoseconds.
+     */
+    public long takeThrottledNanos() {
+        long nanos = throttledNanos;
+        throttledNanos = 0;
+        return nanos;
+    }
+
+    private void throttle(int len) throws IOException {
+        if (byteLimit != null) {
+            throttledNanos += byteLimit.consume(len);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            throttle(count);
+            writeStream(bytes, offset, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Writes to the stream, counting the bytes and marking the time spent blocked.
+     */
+    private void writeStream(byte[] b, int off, int len) throws IOException {
+        writeLength = len;
+        writeStartedNanos = System.nanoTime();
+        try {
+            outputStream.write(b, off, len);
+            bytesWritten += len;
+        } finally {
+            writeStartedNanos = 0;
+        }
+    }
+
+    /**
+     * Hands the buffer over to a long-lived owner, see {@link BufferPool#transfer(ByteBuffer, String)}.
+     *
+     * @param owner the name of the new owner.
+     */
+    public void transferBuffer(String owner) {
+        BufferPool.getInstance().transfer(buffer, owner);
+    }
+
+    /**
+     * Gives the buffer back to the pool. The underlying stream is closed with the socket.
+     */
+    @Override
+    public void close() {
+        BufferPool.getInstance().release(buffer);
+        buffer = null;
+    }
+}
@@ -0,0 +1,686 @@
+package com.serversocket;
+
+import com.serversocket.jfr.ProxyForwardEvent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ProxyService {
+    public static final String PROXY_PREFIX = "proxy ";
+    public static final String BALANCE_KEY = "PROXY_BALANCE";
+    public static final String MAX_CONNECTIONS_KEY = "PROXY_MAX_CONNECTIONS";
+    public static final String MAX_IDLE_KEY = "PROXY_MAX_IDLE";
+    public static final String ACQUIRE_TIMEOUT_KEY = "PROXY_ACQUIRE_TIMEOUT";
+    public static final String CONNECT_TIMEOUT_KEY = "PROXY_CONNECT_TIMEOUT";
+    public static final String READ_TIMEOUT_KEY = "PROXY_READ_TIMEOUT";
+    public static final String IDLE_TIMEOUT_KEY = "PROXY_IDLE_TIMEOUT";
+    public static final String MAX_FAILS_KEY = "PROXY_MAX_FAILS";
+    public static final String FAIL_TIMEOUT_KEY = "PROXY_FAIL_TIMEOUT";
+
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String LEAST_CONNECTIONS = "least-connections";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 32;
+    private static final int DEFAULT_MAX_IDLE = 8;
+    private static final int DEFAULT_ACQUIRE_TIMEOUT = 1000; // in milliseconds
+    private static final int DEFAULT_CONNECT_TIMEOUT = 1000; // in milliseconds
+    private static final int DEFAULT_READ_TIMEOUT = 30000; // in milliseconds
+    private static final int DEFAULT_IDLE_TIMEOUT = 30000; // in milliseconds
+    private static final int DEFAULT_MAX_FAILS = 3;
+    private static final int DEFAULT_FAIL_TIMEOUT = 10; // in seconds
+
+    // Headers that describe one connection and are not forwarded, in lower case.
+    private static final Set<String> HOP_BY_HOP_HEADERS = Set.of(
+            "connection", "keep-alive", "proxy-connection", "te", "trailer", "upgrade", "transfer-encoding", "expect"
+    );
+
+    private final int acquireTimeout;
+    private final Map<String, UpstreamGroup> groups;
+    private final Map<String, UpstreamPool> upstreams;
+
+    private final byte[] badGateway;
+    private final byte[] serviceUnavailable;
+    private final byte[] gatewayTimeout;
+    private final byte[] lengthRequired;
+    private final byte[] badRequest;
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder badGateways = new LongAdder();
+    private final LongAdder gatewayTimeouts = new LongAdder();
+    private final LongAdder saturated = new LongAdder();
+
+    /**
+     * The upstreams of one proxied virtual host and how requests are balanced across them.
+     */
+    private static class UpstreamGroup {
+        final List<UpstreamPool> upstreams;
+        final boolean leastConnections;
+        final AtomicInteger next = new AtomicInteger();
+
+        UpstreamGroup(List<UpstreamPool> upstreams, boolean leastConnections) {
+            this.upstreams = upstreams;
+            this.leastConnections = leastConnections;
+        }
+
+        /**
+         * Orders the available upstreams for the next request: rotated by one per request for round-robin,
+         * by requests in flight for least-connections, with the rotation breaking ties.
+         *
+         * @param excluded the upstreams that already failed this request.
+         * @return the candidate upstreams, most preferred first.
+         */
+        List<UpstreamPool> candidates(Set<UpstreamPool> excluded) {
+            int start = Math.floorMod(next.getAndIncrement(), upstreams.size());
+            List<UpstreamPool> candidates = new ArrayList<>(upstreams.size());
+            for (int i = 0; i < upstreams.size(); i++) {
+                UpstreamPool upstream = upstreams.get((start + i) % upstreams.size());
+                if (!excluded.contains(upstream) && upstream.isAvailable()) {
+                    candidates.add(upstream);
+                }
+            }
+            if (leastConnections) {
+                candidates.sort(Comparator.comparingInt(UpstreamPool::getActive));
+            }
+            return candidates;
+        }
+    }
+
+    /**
+     * Constructs a ProxyService for every virtual host configured as "proxy host:port[,host:port...]".
+     * Upstreams shared by several hosts share one pool, so their limits hold across hosts.
+     *
+     * @param configService the loaded server configuration.
+     */
+    public ProxyService(ConfigService configService) {
+        this.acquireTimeout = configService.getIntSettingsWithKey(ACQUIRE_TIMEOUT_KEY, DEFAULT_ACQUIRE_TIMEOUT);
+        this.groups = new HashMap<>();
+        this.upstreams = new TreeMap<>();
+
+        for (Map.Entry<String, String> proxyHost : configService.getProxyHosts().entrySet()) {
+            List<UpstreamPool> pools = new ArrayList<>();
+            for (String target : proxyHost.getValue().substring(PROXY_PREFIX.length()).trim().split("\\s*,\\s*")) {
+                pools.add(upstreams.computeIfAbsent(target, name -> new UpstreamPool(
+                        name,
+                        configService.getIntSettingsWithKey(MAX_CONNECTIONS_KEY, DEFAULT_MAX_CONNECTIONS),
+                        configService.getIntSettingsWithKey(MAX_IDLE_KEY, DEFAULT_MAX_IDLE),
+                        configService.getIntSettingsWithKey(CONNECT_TIMEOUT_KEY, DEFAULT_CONNECT_TIMEOUT),
+                        configService.getIntSettingsWithKey(READ_TIMEOUT_KEY, DEFAULT_READ_TIMEOUT),
+                        configService.getIntSettingsWithKey(IDLE_TIMEOUT_KEY, DEFAULT_IDLE_TIMEOUT),
+                        configService.getIntSettingsWithKey(MAX_FAILS_KEY, DEFAULT_MAX_FAILS),
+                        configService.getIntSettingsWithKey(FAIL_TIMEOUT_KEY, DEFAULT_FAIL_TIMEOUT)
+                )));
+            }
+
+            String globalBalance = configService.getSettingsWithKey(BALANCE_KEY, ROUND_ROBIN);
+            String balance = configService.getSettingsWithKey(BALANCE_KEY + RateLimiter.VHOST_SEPARATOR + proxyHost.getKey(), globalBalance);
+            groups.put(proxyHost.getKey(), new UpstreamGroup(pools, balance.trim().equals(LEAST_CONNECTIONS)));
+        }
+
+        this.badGateway = encodeError("502 Bad Gateway", null);
+        this.serviceUnavailable = encodeError("503 Service Unavailable", "1");
+        this.gatewayTimeout = encodeError("504 Gateway Timeout", null);
+        this.lengthRequired = encodeError("411 Length Required", null);
+        this.badRequest = encodeError("400 Bad Request", null);
+    }
+
+    /**
+     * Checks if a virtual host is proxied to upstream servers.
+     *
+     * @param host the virtual host.
+     * @return true if the host is configured as a proxy, false otherwise.
+     */
+    public boolean isProxyHost(String host) {
+        return host != null && groups.containsKey(host);
+    }
+
+    /**
+     * Forwards a request to an upstream of its host and streams the response back to the client.
+     * Connection failures are retried on the next upstream as long as no request body was sent.
+     *
+     * @param requestHeader the parsed request header.
+     * @param clientReader  the client's reader, positioned at the request body.
+     * @param clientOutput  the client's output stream.
+     * @param keepAlive     whether the client asked to keep the connection alive.
+     * @param clientAddress the client's address, sent as X-Forwarded-For.
+     * @param scheme        the scheme the client connected with, sent as X-Forwarded-Proto.
+     * @return true if the client connection is kept alive for another request, false otherwise.
+     * @throws IOException If the client connection fails, or the upstream fails after the response started.
+     */
+    public boolean forward(
+            RequestHeader requestHeader,
+            RequestReader clientReader,
+            PooledOutputStream clientOutput,
+            boolean keepAlive,
+            String clientAddress,
+            String scheme
+    ) throws IOException {
+        ProxyForwardEvent event = new ProxyForwardEvent();
+        event.begin();
+        long bytesBefore = clientOutput.getBytesWritten();
+        int status = 502;
+        UpstreamPool upstream = null;
+
+        try {
+            // Ambiguous framing would leave part of the body to be read as the next request
+            String contentLength = requestHeader.getHeaderWithKey("Content-Length");
+            if (contentLength != null && (requestHeader.doesHeaderHaveKey("Transfer-Encoding")
+                    || requestHeader.isHeaderRepeated("Content-Length") || !isValidLength(contentLength))) {
+                status = 400;
+                writeError(clientOutput, badRequest);
+                return false;
+            }
+            // Bodies are forwarded as they arrive, that needs their length up front
+            if (requestHeader.doesHeaderHaveKey("Transfer-Encoding")) {
+                status = 411;
+                writeError(clientOutput, lengthRequired);
+                return false;
+            }
+            long bodyLength = (contentLength == null) ? 0 : Long.parseLong(contentLength.trim());
+
+            UpstreamGroup group = groups.get(requestHeader.getHeaderWithKey("Host"));
+            Set<UpstreamPool> excluded = new HashSet<>();
+            while (true) {
+                List<UpstreamPool> candidates = group.candidates(excluded);
+                if (candidates.isEmpty()) {
+                    badGateways.increment();
+                    writeError(clientOutput, badGateway);
+                    return false;
+                }
+                upstream = acquire(candidates);
+                if (upstream == null) {
+                    status = 503;
+                    saturated.increment();
+                    writeError(clientOutput, serviceUnavailable);
+                    return false;
+                }
+
+                try {
+                    Exchange exchange = exchange(upstream, requestHeader, clientReader, clientOutput, bodyLength,
+                            keepAlive, clientAddress, scheme);
+                    status = exchange.status;
+                    forwarded.increment();
+                    return exchange.keepAlive;
+                } catch (UpstreamException e) {
+                    System.err.printf("[%s] Upstream %s failed - %s\n", new Date(), upstream.getName(), e.getMessage());
+                    if (e.getCause() instanceof SocketTimeoutException) {
+                        status = 504;
+                        gatewayTimeouts.increment();
+                        writeError(clientOutput, gatewayTimeout);
+                        return false;
+                    }
+                    if (bodyLength > 0) {
+                        badGateways.increment();
+                        writeError(clientOutput, badGateway);
+                        return false;
+                    }
+                    retried.increment();
+                    excluded.add(upstream);
+                } finally {
+                    upstream.releasePermit();
+                }
+            }
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.setRequest(requestHeader);
+                event.setResponse(status, clientOutput.getBytesWritten() - bytesBefore);
+                event.upstream = (upstream != null) ? upstream.getName() : null;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Checks if a Content-Length value is a single non-negative decimal number.
+     *
+     * @param contentLength the header value.
+     * @return true if the value is a valid length, false otherwise.
+     */
+    private static boolean isValidLength(String contentLength) {
+        String length = contentLength.trim();
+        if (length.isEmpty() || length.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < length.length(); i++) {
+            if (length.charAt(i) < '0' || length.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reserves a request slot on the first candidate that has one free, or waits for the preferred one.
+     *
+     * @param candidates the available upstreams, most preferred first.
+     * @return the upstream holding the slot, or null if none freed up in time.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    private UpstreamPool acquire(List<UpstreamPool> candidates) throws InterruptedIOException {
+        for (UpstreamPool candidate : candidates) {
+            if (candidate.tryAcquire()) {
+                return candidate;
+            }
+        }
+        try {
+            UpstreamPool preferred = candidates.get(0);
+            return preferred.tryAcquire(acquireTimeout) ? preferred : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upstream connection");
+        }
+    }
+
+    /**
+     * Sends the request on a pooled connection and streams the response to the client.
+     * A pooled connection the upstream closed while idle is retried once on a fresh connection.
+     *
+     * @return the status and client keep-alive of the response.
+     * @throws UpstreamException If the upstream failed before its response head was received.
+     * @throws IOException       If the client failed, or the upstream failed while streaming the body.
+     */
+    private Exchange exchange(
+            UpstreamPool upstream,
+            RequestHeader requestHeader,
+            RequestReader clientReader,
+            PooledOutputStream clientOutput,
+            long bodyLength,
+            boolean keepAlive,
+            String clientAddress,
+            String scheme
+    ) throws IOException {
+        Exchange exchange = new Exchange(requestHeader, clientReader, clientOutput, bodyLength, keepAlive, clientAddress, scheme);
+        try {
+            UpstreamPool.Connection connection = upstream.borrow();
+            if (exchange(upstream, connection, exchange)) {
+                return exchange;
+            }
+            // Closed by the upstream while it sat in the pool, not a sign of ill health
+            exchange(upstream, upstream.open(), exchange);
+            return exchange;
+        } catch (IOException e) {
+            if (exchange.responseStarted) {
+                throw e;
+            }
+            upstream.markFailure();
+            throw new UpstreamException(e);
+        }
+    }
+
+    /**
+     * Runs one request and response on a connection, and gives the connection back.
+     *
+     * @param upstream   the upstream the connection belongs to.
+     * @param connection the connection.
+     * @param exchange   the request, receives the response status.
+     * @return true if the response was relayed, false if a reused connection turned out to be closed before anything
+     * was sent back, and the request can be repeated.
+     * @throws IOException If the client or the upstream fails.
+     */
+    private boolean exchange(UpstreamPool upstream, UpstreamPool.Connection connection, Exchange exchange) throws IOException {
+        List<String[]> responseHeaders = new ArrayList<>();
+        String statusLine;
+        try {
+            sendRequest(connection, exchange);
+            statusLine = readResponseHead(connection.getReader(), responseHeaders);
+        } catch (IOException e) {
+            upstream.giveBack(connection, false);
+            // A closed pooled connection is retried, a timeout or a malformed response is the upstream's failure
+            if (connection.isReused() && exchange.bodyLength == 0
+                    && !(e instanceof SocketTimeoutException) && !(e instanceof ProtocolException)) {
+                return false;
+            }
+            throw e;
+        }
+        upstream.markSuccess();
+
+        boolean reusable = false;
+        try {
+            exchange.responseStarted = true;
+            reusable = relayResponse(connection, statusLine, responseHeaders, exchange);
+            return true;
+        } catch (ProtocolException e) {
+            // Too late for a 502, the client only sees the response cut short
+            upstream.markFailure();
+            throw e;
+        } finally {
+            upstream.giveBack(connection, reusable);
+        }
+    }
+
+    /**
+     * Writes the request line, the end-to-end request headers with the forwarding headers, and the request body.
+     */
+    private void sendRequest(UpstreamPool.Connection connection, Exchange exchange) throws IOException {
+        RequestHeader requestHeader = exchange.requestHeader;
+        String clientAddress = exchange.clientAddress;
+        PooledOutputStream upstreamOutput = connection.getWriter();
+        upstreamOutput.writeAscii(requestHeader.getMethod() + " " + requestHeader.getRequestTarget() + " HTTP/1.1\r\n");
+
+        String forwardedFor = clientAddress;
+        for (Map.Entry<String, String> header : requestHeader.getHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (name.equals("x-forwarded-for")) {
+                forwardedFor = header.getValue() + ", " + clientAddress;
+            } else if (!HOP_BY_HOP_HEADERS.contains(name)) {
+                writeHeader(upstreamOutput, header.getKey(), header.getValue());
+            }
+        }
+        writeHeader(upstreamOutput, "X-Forwarded-For", forwardedFor);
+        writeHeader(upstreamOutput, "X-Forwarded-Proto", exchange.scheme);
+        writeHeader(upstreamOutput, "X-Forwarded-Host", requestHeader.getHeaderWithKey("Host"));
+        writeHeader(upstreamOutput, "Connection", "keep-alive");
+        upstreamOutput.writeAscii("\r\n");
+
+        copy(exchange.clientReader, upstreamOutput, exchange.bodyLength);
+        upstreamOutput.flush();
+    }
+
+    /**
+     * Reads the status line and headers of the final response, skipping interim 1xx responses.
+     *
+     * @param upstreamReader  the upstream connection's reader.
+     * @param responseHeaders receives the header names and values in order.
+     * @return the status line.
+     * @throws ProtocolException If the upstream sent a malformed response head.
+     * @throws IOException       If the upstream closed the connection.
+     */
+    private String readResponseHead(RequestReader upstreamReader, List<String[]> responseHeaders) throws IOException {
+        while (true) {
+            String statusLine = upstreamReader.readLine();
+            if (statusLine == null) {
+                throw new EOFException("Upstream closed the connection");
+            }
+            if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+                throw new ProtocolException("Malformed upstream status line: " + statusLine);
+            }
+
+            responseHeaders.clear();
+            String line;
+            while ((line = upstreamReader.readLine()) != null && !line.isEmpty()) {
+                int colonIndex = line.indexOf(':');
+                if (colonIndex > 0) {
+                    responseHeaders.add(new String[]{line.substring(0, colonIndex), line.substring(colonIndex + 1).trim()});
+                }
+            }
+            if (line == null) {
+                throw new EOFException("Upstream closed the connection in the response header");
+            }
+            if (getStatus(statusLine) / 100 != 1) {
+                checkContentLength(responseHeaders);
+                return statusLine;
+            }
+        }
+    }
+
+    /**
+     * Checks that the Content-Length headers of a response agree on one valid length, before any of it is relayed.
+     *
+     * @throws ProtocolException If a length is malformed, or the lengths differ.
+     */
+    private static void checkContentLength(List<String[]> responseHeaders) throws ProtocolException {
+        String length = null;
+        for (String[] header : responseHeaders) {
+            if (!header[0].equalsIgnoreCase("Content-Length")) {
+                continue;
+            }
+            if (!isValidLength(header[1]) || (length != null && !length.equals(header[1]))) {
+                throw new ProtocolException("Malformed upstream Content-Length: " + header[1]);
+            }
+            length = header[1];
+        }
+    }
+
+    /**
+     * Writes the response head to the client and streams the body as it arrives, chunk by chunk for chunked bodies.
+     *
+     * @return true if the upstream connection can be reused, false otherwise.
+     * @throws IOException If the client or the upstream fails.
+     */
+    private boolean relayResponse(
+            UpstreamPool.Connection connection,
+            String statusLine,
+            List<String[]> responseHeaders,
+            Exchange exchange
+    ) throws IOException {
+        PooledOutputStream clientOutput = exchange.clientOutput;
+        int status = getStatus(statusLine);
+        boolean noBody = exchange.requestHeader.getMethod().equals("HEAD") || status == 204 || status == 304;
+        boolean chunked = false;
+        long contentLength = -1;
+        boolean upstreamKeepAlive = statusLine.startsWith("HTTP/1.1");
+        Set<String> connectionTokens = new HashSet<>();
+
+        for (String[] header : responseHeaders) {
+            String name = header[0].toLowerCase(Locale.ROOT);
+            if (name.equals("transfer-encoding")) {
+                chunked = header[1].toLowerCase(Locale.ROOT).endsWith("chunked");
+            } else if (name.equals("content-length")) {
+                contentLength = Long.parseLong(header[1].trim());
+            } else if (name.equals("connection")) {
+                for (String token : header[1].toLowerCase(Locale.ROOT).split("\\s*,\\s*")) {
+                    connectionTokens.add(token);
+                }
+            }
+        }
+        if (connectionTokens.contains("close")) {
+            upstreamKeepAlive = false;
+        } else if (connectionTokens.contains("keep-alive")) {
+            upstreamKeepAlive = true;
+        }
+
+        // A body delimited by the end of the connection cannot be followed by another response
+        boolean delimitedByClose = !noBody && !chunked && contentLength == -1;
+        boolean keepAlive = exchange.keepAlive && !delimitedByClose;
+        exchange.status = status;
+        exchange.keepAlive = keepAlive;
+
+        clientOutput.writeAscii("HTTP/1.1 " + statusLine.substring(9) + "\r\n");
+        for (String[] header : responseHeaders) {
+            String name = header[0].toLowerCase(Locale.ROOT);
+            // Chunked framing wins over a Content-Length, which must not reach the client alongside it
+            if (chunked && name.equals("content-length")) {
+                continue;
+            }
+            if (!HOP_BY_HOP_HEADERS.contains(name) && !connectionTokens.contains(name)) {
+                writeHeader(clientOutput, header[0], header[1]);
+            }
+        }
+        if (chunked && !noBody) {
+            writeHeader(clientOutput, "Transfer-Encoding", "chunked");
+        }
+        writeHeader(clientOutput, "Connection", keepAlive ? "keep-alive" : "close");
+        if (keepAlive) {
+            writeHeader(clientOutput, "Keep-Alive", "timeout=" + ClientServer.TIMEOUT + "s, max=1000");
+        }
+        clientOutput.writeAscii("\r\n");
+
+        RequestReader upstreamReader = connection.getReader();
+        if (noBody) {
+            // Nothing to stream
+        } else if (chunked) {
+            relayChunks(upstreamReader, clientOutput);
+        } else if (contentLength >= 0) {
+            copy(upstreamReader, clientOutput, contentLength);
+        } else {
+            copy(upstreamReader, clientOutput, Long.MAX_VALUE);
+        }
+        clientOutput.flush();
+
+        return upstreamKeepAlive && !delimitedByClose;
+    }
+
+    /**
+     * Relays a chunked body as is, reading the chunk sizes to find where it ends. Every chunk is passed on when it arrives.
+     */
+    private void relayChunks(RequestReader upstreamReader, PooledOutputStream clientOutput) throws IOException {
+        while (true) {
+            String sizeLine = readRequiredLine(upstreamReader);
+            writeLine(clientOutput, sizeLine);
+
+            int extension = sizeLine.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong((extension == -1 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Malformed upstream chunk size: " + sizeLine);
+            }
+            if (size < 0) {
+                throw new ProtocolException("Malformed upstream chunk size: " + sizeLine);
+            }
+            if (size == 0) {
+                // Trailer fields up to the empty line
+                String trailer;
+                do {
+                    trailer = readRequiredLine(upstreamReader);
+                    writeLine(clientOutput, trailer);
+                } while (!trailer.isEmpty());
+                return;
+            }
+            copy(upstreamReader, clientOutput, size);
+            writeLine(clientOutput, readRequiredLine(upstreamReader));
+            clientOutput.flush();
+        }
+    }
+
+    /**
+     * Copies a number of bytes through a pooled buffer, or everything up to the end of the stream for Long.MAX_VALUE.
+     */
+    private static void copy(RequestReader reader, OutputStream outputStream, long length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        ByteBuffer buffer = BufferPool.getInstance().acquire(BufferPool.MEDIUM);
+        try {
+            byte[] bytes = buffer.array();
+            while (length > 0) {
+                int bytesRead = reader.read(bytes, buffer.arrayOffset(), (int) Math.min(buffer.capacity(), length));
+                if (bytesRead == -1) {
+                    if (length == Long.MAX_VALUE) {
+                        return;
+                    }
+                    throw new EOFException("Connection closed with " + length + " body bytes left");
+                }
+                outputStream.write(bytes, buffer.arrayOffset(), bytesRead);
+                if (bytesRead < buffer.capacity()) {
+                    // The sender has nothing more buffered, pass on what arrived instead of holding it back
+                    outputStream.flush();
+                }
+                if (length != Long.MAX_VALUE) {
+                    length -= bytesRead;
+                }
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    private static String readRequiredLine(RequestReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new EOFException("Upstream closed the connection in a chunked body");
+        }
+        return line;
+    }
+
+    private static void writeLine(OutputStream outputStream, String line) throws IOException {
+        outputStream.write(line.getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.write('\r');
+        outputStream.write('\n');
+    }
+
+    private static void writeHeader(PooledOutputStream outputStream, String name, String value) throws IOException {
+        outputStream.writeAscii(name);
+        outputStream.writeAscii(": ");
+        outputStream.writeAscii(value);
+        outputStream.writeAscii("\r\n");
+    }
+
+    private static int getStatus(String statusLine) {
+        return Integer.parseInt(statusLine.substring(9, 12));
+    }
+
+    private static void writeError(PooledOutputStream outputStream, byte[] response) throws IOException {
+        outputStream.write(response);
+        outputStream.flush();
+    }
+
+    private static byte[] encodeError(String status, String retryAfter) {
+        return ("HTTP/1.1 " + status + "\r\n" +
+                ((retryAfter != null) ? "Retry-After: " + retryAfter + "\r\n" : "") +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n" +
+                "Server: WW Server Pro\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Retrieves a summary of the proxy counters and of every upstream.
+     *
+     * @return the proxy statistics.
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder(String.format(
+                "forwarded=%d, retried=%d, badGateway=%d, gatewayTimeout=%d, saturated=%d",
+                forwarded.sum(), retried.sum(), badGateways.sum(), gatewayTimeouts.sum(), saturated.sum()));
+        for (UpstreamPool upstream : upstreams.values()) {
+            stats.append(", [").append(upstream.getStats()).append(']');
+        }
+        return stats.toString();
+    }
+
+    /**
+     * One forwarded request and the outcome of its response.
+     */
+    private static class Exchange {
+        final RequestHeader requestHeader;
+        final RequestReader clientReader;
+        final PooledOutputStream clientOutput;
+        final long bodyLength;
+        final String clientAddress;
+        final String scheme;
+
+        boolean keepAlive;
+        boolean responseStarted;
+        int status;
+
+        Exchange(
+                RequestHeader requestHeader,
+                RequestReader clientReader,
+                PooledOutputStream clientOutput,
+                long bodyLength,
+                boolean keepAlive,
+                String clientAddress,
+                String scheme
+        ) {
+            this.requestHeader = requestHeader;
+            this.clientReader = clientReader;
+            this.clientOutput = clientOutput;
+            this.bodyLength = bodyLength;
+            this.keepAlive = keepAlive;
+            this.clientAddress = clientAddress;
+            this.scheme = scheme;
+        }
+    }
+
+    /**
+     * An upstream failure that happened before any of its response reached the client, so another upstream may be tried.
+     */
+    private static class UpstreamException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UpstreamException(IOException cause) {
+            super(cause.getClass().getSimpleName() + ": " + cause.getMessage(), cause);
+        }
+    }
+}
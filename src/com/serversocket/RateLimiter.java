@@ -0,0 +1,261 @@
+package com.serversocket;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RateLimiter {
+    public static final String CONNECTIONS_KEY = "RATE_LIMIT_CONNECTIONS";
+    public static final String REQUESTS_KEY = "RATE_LIMIT_REQUESTS";
+    public static final String REQUESTS_BURST_KEY = "RATE_LIMIT_REQUESTS_BURST";
+    public static final String BYTES_KEY = "RATE_LIMIT_BYTES";
+    public static final String BYTES_BURST_KEY = "RATE_LIMIT_BYTES_BURST";
+    public static final String STRIPES_KEY = "RATE_LIMIT_STRIPES";
+    public static final String MAX_CLIENTS_KEY = "RATE_LIMIT_MAX_CLIENTS";
+    public static final String IDLE_TIMEOUT_KEY = "RATE_LIMIT_IDLE_TIMEOUT";
+    public static final String VHOST_SEPARATOR = "@";
+
+    private static final int DEFAULT_CONNECTIONS = 64;
+    private static final int DEFAULT_STRIPES = 16;
+    private static final int DEFAULT_MAX_CLIENTS = 65536;
+    private static final int DEFAULT_IDLE_TIMEOUT = 300; // in seconds
+    private static final int EVICTION_SCAN = 4;
+    private static final int RETRY_AFTER = 1; // in seconds
+
+    private final ConfigService configService;
+    private final Stripe[] stripes;
+    private final int maxConnections;
+    private final int maxEntriesPerStripe;
+    private final long idleTimeout;
+    private final byte[] tooManyRequests;
+
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    /**
+     * Constructs a RateLimiter from the configured limits. A limit of 0 turns it off.
+     *
+     * @param configService the loaded server configuration.
+     */
+    public RateLimiter(ConfigService configService) {
+        this.configService = configService;
+        this.maxConnections = configService.getIntSettingsWithKey(CONNECTIONS_KEY, DEFAULT_CONNECTIONS);
+        this.idleTimeout = TimeUnit.SECONDS.toNanos(configService.getIntSettingsWithKey(IDLE_TIMEOUT_KEY, DEFAULT_IDLE_TIMEOUT));
+
+        int stripeCount = Integer.highestOneBit(Math.max(1, configService.getIntSettingsWithKey(STRIPES_KEY, DEFAULT_STRIPES)));
+        this.maxEntriesPerStripe = Math.max(1, configService.getIntSettingsWithKey(MAX_CLIENTS_KEY, DEFAULT_MAX_CLIENTS) / stripeCount);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+
+        this.tooManyRequests = ("HTTP/1.1 429 Too Many Requests\r\n" +
+                "Retry-After: " + RETRY_AFTER + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n" +
+                "Server: WW Server Pro\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Counts a new connection from the given address, unless the address is at its connection limit.
+     * An opened connection must be closed with {@link #closeConnection(InetAddress)}.
+     *
+     * @param address the remote address.
+     * @return true if the connection is allowed, false otherwise.
+     */
+    public boolean tryOpenConnection(InetAddress address) {
+        String key = address.getHostAddress();
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            ClientState state = stripe.getOrCreate(key);
+            if (maxConnections > 0 && state.connections >= maxConnections) {
+                rejectedConnections.increment();
+                return false;
+            }
+            state.connections++;
+            return true;
+        }
+    }
+
+    /**
+     * Releases a connection counted by {@link #tryOpenConnection(InetAddress)}.
+     *
+     * @param address the remote address.
+     */
+    public void closeConnection(InetAddress address) {
+        String key = address.getHostAddress();
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            ClientState state = stripe.getOrCreate(key);
+            state.connections = Math.max(0, state.connections - 1);
+        }
+    }
+
+    /**
+     * Takes a request token of the address, shared by all virtual hosts except those with limits of their own.
+     *
+     * @param address the remote address.
+     * @param host    the requested host, whose limits override the global ones.
+     * @return true if the request is allowed, false if it must be answered with {@link #getTooManyRequests()}.
+     */
+    public boolean tryAcquireRequest(InetAddress address, String host) {
+        TokenBucket bucket = getBucket(address, host, true);
+        if (bucket == null || bucket.tryConsume(1)) {
+            return true;
+        }
+        rejectedRequests.increment();
+        return false;
+    }
+
+    /**
+     * Retrieves the byte bucket the response bandwidth of the address is throttled with, shared like the request tokens.
+     *
+     * @param address the remote address.
+     * @param host    the requested host, whose limits override the global ones.
+     * @return the byte bucket, or null if bandwidth is not limited.
+     */
+    public TokenBucket getByteBucket(InetAddress address, String host) {
+        return getBucket(address, host, false);
+    }
+
+    /**
+     * Records time a response spent throttled.
+     *
+     * @param nanos the time waited in nanoseconds.
+     */
+    public void recordThrottled(long nanos) {
+        throttledNanos.add(nanos);
+    }
+
+    /**
+     * Retrieves the pre-encoded 429 response sent to limited clients.
+     *
+     * @return the complete response bytes.
+     */
+    public byte[] getTooManyRequests() {
+        return tooManyRequests;
+    }
+
+    /**
+     * Retrieves a summary of the limiter counters.
+     *
+     * @return the limiter statistics.
+     */
+    public String getStats() {
+        int tracked = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                tracked += stripe.size();
+            }
+        }
+        return String.format("trackedClients=%d, rejectedConnections=%d, rejectedRequests=%d, throttled=%.1fs",
+                tracked, rejectedConnections.sum(), rejectedRequests.sum(), throttledNanos.sum() / 1e9);
+    }
+
+    private TokenBucket getBucket(InetAddress address, String host, boolean requests) {
+        String rateKey = requests ? REQUESTS_KEY : BYTES_KEY;
+        String burstKey = requests ? REQUESTS_BURST_KEY : BYTES_BURST_KEY;
+        int rate = getLimit(rateKey, host, 0);
+        if (rate <= 0) {
+            return null;
+        }
+
+        // The Host header is the client's to choose, so only hosts with limits of their own get their own buckets
+        String key = address.getHostAddress();
+        if (hasOverride(rateKey, host) || hasOverride(burstKey, host)) {
+            key += VHOST_SEPARATOR + host;
+        }
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            ClientState state = stripe.getOrCreate(key);
+            if (requests && state.requests == null) {
+                state.requests = new TokenBucket(rate, getBurst(burstKey, host, rate));
+            } else if (!requests && state.bytes == null) {
+                state.bytes = new TokenBucket(rate, getBurst(burstKey, host, rate));
+            }
+            return requests ? state.requests : state.bytes;
+        }
+    }
+
+    /**
+     * Retrieves a limit, "{key}@{host}" takes precedence over the global "{key}".
+     */
+    private int getLimit(String key, String host, int defaultValue) {
+        int globalLimit = configService.getIntSettingsWithKey(key, defaultValue);
+        return (host == null) ? globalLimit : configService.getIntSettingsWithKey(key + VHOST_SEPARATOR + host, globalLimit);
+    }
+
+    /**
+     * Checks if "{key}@{host}" is configured.
+     */
+    private boolean hasOverride(String key, String host) {
+        return host != null && configService.doesSettingsHaveKey(key + VHOST_SEPARATOR + host);
+    }
+
+    /**
+     * Retrieves a burst size, a burst of 0 or less, as in the sample configuration, means one second at the rate.
+     */
+    private int getBurst(String key, String host, int rate) {
+        int burst = getLimit(key, host, rate);
+        return (burst <= 0) ? rate : burst;
+    }
+
+    private Stripe stripeOf(String key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private static class ClientState {
+        private int connections;
+        private TokenBucket requests;
+        private TokenBucket bytes;
+        private long lastSeen;
+    }
+
+    /**
+     * One lock's worth of client entries, in access order so the idle ones are found first.
+     */
+    private class Stripe extends LinkedHashMap<String, ClientState> {
+        private static final long serialVersionUID = 1L;
+
+        Stripe() {
+            super(16, 0.75f, true);
+        }
+
+        ClientState getOrCreate(String key) {
+            long now = System.nanoTime();
+            ClientState state = get(key);
+            if (state == null) {
+                evict(now);
+                state = new ClientState();
+                put(key, state);
+            }
+            state.lastSeen = now;
+            return state;
+        }
+
+        /**
+         * Drops a few of the least recently seen entries that are idle, or over the bound.
+         * Entries holding open connections are kept, their counts must survive.
+         */
+        private void evict(long now) {
+            Iterator<Map.Entry<String, ClientState>> iterator = entrySet().iterator();
+            for (int scanned = 0; scanned < EVICTION_SCAN && iterator.hasNext(); scanned++) {
+                ClientState eldest = iterator.next().getValue();
+                boolean expired = now - eldest.lastSeen > idleTimeout;
+                boolean full = size() >= maxEntriesPerStripe;
+                if (eldest.connections == 0 && (expired || full)) {
+                    iterator.remove();
+                } else if (!expired && !full) {
+                    return;
+                }
+            }
+        }
+    }
+}
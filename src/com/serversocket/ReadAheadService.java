@@ -0,0 +1,295 @@
+package com.serversocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prefetches the next window of files read by consecutive range requests, as media players do.
+ * Each (client, file) stream is tracked across connections: once a range continues where the previous one
+ * ended, the chunks after it are read on a small I/O pool into a shared chunk cache, so the following range is
+ * served from memory. Seeking resets the stream and cancels its queued prefetches, such ranges are read from disk.
+ */
+public class ReadAheadService {
+    public static final String WINDOW_KEY = "READ_AHEAD_WINDOW";
+    public static final String CHUNK_SIZE_KEY = "READ_AHEAD_CHUNK_SIZE";
+    public static final String MAX_BYTES_KEY = "READ_AHEAD_MAX_BYTES";
+    public static final String THREADS_KEY = "READ_AHEAD_THREADS";
+    public static final String QUEUE_SIZE_KEY = "READ_AHEAD_QUEUE_SIZE";
+    public static final String TRIGGER_KEY = "READ_AHEAD_TRIGGER";
+    public static final String MAX_STREAMS_KEY = "READ_AHEAD_MAX_STREAMS";
+
+    private static final int DEFAULT_WINDOW = 2 * 1024 * 1024; // in bytes, 0 turns read-ahead off
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_QUEUE_SIZE = 64;
+    private static final int DEFAULT_TRIGGER = 1; // sequential ranges in a row before prefetching
+    private static final int DEFAULT_MAX_STREAMS = 4096;
+
+    private static final ReadAheadService INSTANCE = new ReadAheadService();
+
+    private volatile long window;
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile long maxBytes;
+    private volatile int trigger;
+    private volatile int maxStreams;
+    private volatile ThreadPoolExecutor ioPool;
+
+    // Least recently used first, both guarded by this.
+    private final LinkedHashMap<String, Chunk> chunks;
+    private final LinkedHashMap<String, Stream> streams;
+    private long cachedBytes;
+
+    private final LongAdder sequentialRanges = new LongAdder();
+    private final LongAdder seeks = new LongAdder();
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder hitBytes = new LongAdder();
+    private final LongAdder missBytes = new LongAdder();
+
+    /**
+     * A cached chunk, with no data while its prefetch is queued or running.
+     */
+    private static class Chunk {
+        volatile byte[] data;
+        Future<?> task;
+    }
+
+    /**
+     * The last range a client read from a file.
+     */
+    private static class Stream {
+        long lastStart = -1;
+        long lastEnd = -1;
+        int sequential;
+        final List<String> pending = new ArrayList<>();
+    }
+
+    private ReadAheadService() {
+        this.chunks = new LinkedHashMap<>(16, 0.75f, true);
+        this.streams = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Retrieves the process-wide read-ahead service.
+     *
+     * @return the read-ahead service.
+     */
+    public static ReadAheadService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Applies the read-ahead settings from the configuration and starts the I/O pool.
+     *
+     * @param configService the loaded server configuration.
+     */
+    public void configure(ConfigService configService) {
+        this.window = configService.getIntSettingsWithKey(WINDOW_KEY, DEFAULT_WINDOW);
+        this.chunkSize = Math.max(4096, configService.getIntSettingsWithKey(CHUNK_SIZE_KEY, DEFAULT_CHUNK_SIZE));
+        this.maxBytes = configService.getIntSettingsWithKey(MAX_BYTES_KEY, DEFAULT_MAX_BYTES);
+        this.trigger = configService.getIntSettingsWithKey(TRIGGER_KEY, DEFAULT_TRIGGER);
+        this.maxStreams = configService.getIntSettingsWithKey(MAX_STREAMS_KEY, DEFAULT_MAX_STREAMS);
+        if (window <= 0) {
+            return;
+        }
+
+        int threads = configService.getIntSettingsWithKey(THREADS_KEY, DEFAULT_THREADS);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.ioPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(configService.getIntSettingsWithKey(QUEUE_SIZE_KEY, DEFAULT_QUEUE_SIZE)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "read-ahead-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.ioPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Checks if read-ahead is configured.
+     *
+     * @return true if ranges are tracked and prefetched, false otherwise.
+     */
+    public boolean isEnabled() {
+        return ioPool != null;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Records a range request and, if it continues the client's previous range of the file, prefetches the window after it.
+     *
+     * @param client       the client address.
+     * @param path         the file path.
+     * @param lastModified the file's modification time, so chunks of a replaced file are never served.
+     * @param fileLength   the file length.
+     * @param start        the first byte of the range.
+     * @param end          the last byte of the range.
+     */
+    public void onRange(String client, String path, long lastModified, long fileLength, long start, long end) {
+        String streamKey = client + '\0' + path;
+        synchronized (this) {
+            Stream stream = streams.get(streamKey);
+            if (stream == null) {
+                stream = new Stream();
+                streams.put(streamKey, stream);
+                if (streams.size() > maxStreams) {
+                    Iterator<Stream> eldest = streams.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+
+            // Sequential if it starts after the previous range's start, at most a chunk past its end
+            if (stream.lastEnd != -1 && start > stream.lastStart && start <= stream.lastEnd + 1 + chunkSize) {
+                stream.sequential++;
+                sequentialRanges.increment();
+            } else if (stream.lastEnd != -1) {
+                stream.sequential = 0;
+                seeks.increment();
+                cancel(stream.pending);
+                stream.pending.clear();
+            }
+            stream.lastStart = start;
+            stream.lastEnd = end;
+
+            if (stream.sequential >= trigger && end + 1 < fileLength) {
+                stream.pending.removeIf(key -> chunks.get(key) == null || chunks.get(key).data != null);
+                schedule(stream, path, lastModified, fileLength, end + 1, Math.min(fileLength - 1, end + window));
+            }
+        }
+    }
+
+    /**
+     * Retrieves the cached chunk holding a file position.
+     *
+     * @param path         the file path.
+     * @param lastModified the file's modification time.
+     * @param position     the file position.
+     * @return the chunk bytes, starting at the chunk boundary before the position, or null if the chunk is not cached.
+     */
+    public byte[] getChunk(String path, long lastModified, long position) {
+        String key = chunkKey(path, lastModified, position / chunkSize);
+        synchronized (this) {
+            Chunk chunk = chunks.get(key);
+            return (chunk == null) ? null : chunk.data;
+        }
+    }
+
+    /**
+     * Counts the bytes of a range served from cached chunks and from disk.
+     *
+     * @param fromCache the bytes served from memory.
+     * @param fromDisk  the bytes read from disk.
+     */
+    public void recordServed(long fromCache, long fromDisk) {
+        hitBytes.add(fromCache);
+        missBytes.add(fromDisk);
+    }
+
+    /**
+     * Queues the prefetch of the chunks covering a window that are neither cached nor already queued.
+     * Must hold the lock. When the I/O pool is saturated the rest of the window is dropped.
+     */
+    private void schedule(Stream stream, String path, long lastModified, long fileLength, long from, long to) {
+        for (long index = from / chunkSize; index <= to / chunkSize; index++) {
+            String key = chunkKey(path, lastModified, index);
+            if (chunks.containsKey(key)) {
+                continue;
+            }
+
+            Chunk chunk = new Chunk();
+            long position = index * chunkSize;
+            int length = (int) Math.min(chunkSize, fileLength - position);
+            try {
+                chunk.task = ioPool.submit(() -> load(key, chunk, path, position, length));
+            } catch (RejectedExecutionException e) {
+                dropped.add(to / chunkSize - index + 1);
+                return;
+            }
+            chunks.put(key, chunk);
+            stream.pending.add(key);
+        }
+    }
+
+    /**
+     * Cancels the queued prefetches of a stream that seeked elsewhere. Running ones finish and stay cached.
+     * Must hold the lock.
+     */
+    private void cancel(List<String> keys) {
+        for (String key : keys) {
+            Chunk chunk = chunks.get(key);
+            if (chunk != null && chunk.data == null && chunk.task.cancel(false)) {
+                chunks.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Reads a chunk on the I/O pool and adds it to the cache, evicting the least recently used chunks over the memory cap.
+     */
+    private void load(String key, Chunk chunk, String path, long position, int length) {
+        byte[] data = new byte[length];
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) == -1) {
+                    throw new EOFException("File " + path + " ended before the prefetched chunk");
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                chunks.remove(key, chunk);
+            }
+            System.err.printf("[%s] Read-ahead of %s failed - %s\n", new Date(), path, e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (chunks.get(key) != chunk) {
+                return;
+            }
+            chunk.data = data;
+            cachedBytes += length;
+            prefetched.increment();
+
+            Iterator<Chunk> iterator = chunks.values().iterator();
+            while (cachedBytes > maxBytes && iterator.hasNext()) {
+                Chunk eldest = iterator.next();
+                if (eldest.data != null) {
+                    cachedBytes -= eldest.data.length;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static String chunkKey(String path, long lastModified, long index) {
+        return path + '\0' + lastModified + '\0' + index;
+    }
+
+    /**
+     * Retrieves a summary of the read-ahead counters.
+     *
+     * @return the read-ahead statistics.
+     */
+    public synchronized String getStats() {
+        long hits = hitBytes.sum();
+        long total = hits + missBytes.sum();
+        return String.format("streams=%d, chunks=%d, cachedBytes=%d, sequential=%d, seeks=%d, prefetched=%d, dropped=%d, " +
+                        "hitBytes=%d, missBytes=%d, hitRatio=%.1f%%",
+                streams.size(), chunks.size(), cachedBytes, sequentialRanges.sum(), seeks.sum(), prefetched.sum(),
+                dropped.sum(), hits, missBytes.sum(), (total == 0) ? 0 : 100.0 * hits / total);
+    }
+}
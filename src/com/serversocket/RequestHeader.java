@@ -1,20 +1,39 @@
 package com.serversocket;
 
-import java.io.BufferedReader;
+import com.serversocket.jfr.HeaderParseEvent;
+
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class RequestHeader {
     private String requestStatus;
-    private final HashMap<String, String> requestHeader;
-    private final BufferedReader bufferedReader;
+    // Header names are case-insensitive, e.g. content-length and Content-Length are the same header.
+    private final TreeMap<String, String> requestHeader;
+    private final Set<String> repeatedHeaders;
+    private final RequestReader requestReader;
 
-    public RequestHeader(BufferedReader bufferedReader) throws IOException {
-        this.bufferedReader = bufferedReader;
-        this.requestHeader = new HashMap<>();
+    public RequestHeader(RequestReader requestReader) throws IOException {
+        this.requestReader = requestReader;
+        this.requestHeader = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        this.repeatedHeaders = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
         setRequestStatus();
+
+        // Timed from the request line on, waiting for the next keep-alive request is not parsing
+        HeaderParseEvent event = new HeaderParseEvent();
+        event.begin();
         setAllRequestHeaders();
+        event.end();
+        if (event.shouldCommit()) {
+            event.setRequest(this);
+            event.commit();
+        }
     }
 
     /**
@@ -29,12 +48,33 @@ public class RequestHeader {
     /**
      * Sets the request status by reading the status line from the input buffer.
      *
-     * @throws IOException If an I/O error occurs.
+     * @throws IOException If an I/O error occurs or the client closed the connection.
      */
     public void setRequestStatus() throws IOException {
         do {
-            requestStatus = bufferedReader.readLine();
-        } while (requestStatus == null || Objects.equals(requestStatus, ""));
+            requestStatus = requestReader.readLine();
+            if (requestStatus == null) {
+                throw new EOFException("Connection closed by client");
+            }
+        } while (Objects.equals(requestStatus, ""));
+    }
+
+    /**
+     * Retrieves the request method from the request status line.
+     *
+     * @return The request method, e.g. GET.
+     */
+    public String getMethod() {
+        return requestStatus.split(" ")[0];
+    }
+
+    /**
+     * Retrieves the request target as sent, with its leading slash, query and encoding.
+     *
+     * @return The request target.
+     */
+    public String getRequestTarget() {
+        return requestStatus.split(" ")[1];
     }
 
     /**
@@ -55,20 +95,27 @@ public class RequestHeader {
     public void setAllRequestHeaders() throws IOException {
         String request;
         do {
-            request = bufferedReader.readLine();
+            request = requestReader.readLine();
         } while (appendToHash(request));
     }
 
     /**
-     * Appends a request header line to the requestHeader HashMap.
+     * Appends a request header line to the requestHeader map, noting the names sent more than once.
      *
      * @param line The request header line to be appended.
      * @return true if the line was successfully appended, false otherwise.
      */
     private boolean appendToHash(String line) {
+        if (line == null) {
+            return false;
+        }
         int colonIndex = line.indexOf(":");
         if (colonIndex != -1) {
-            requestHeader.put(line.substring(0, colonIndex), line.substring(colonIndex + 2));
+            String key = line.substring(0, colonIndex);
+            if (requestHeader.containsKey(key)) {
+                repeatedHeaders.add(key);
+            }
+            requestHeader.put(key, line.substring(colonIndex + 1).trim());
             return true;
         }
         return false;
@@ -84,6 +131,15 @@ public class RequestHeader {
         return requestHeader.get(key);
     }
 
+    /**
+     * Retrieves all request headers.
+     *
+     * @return An unmodifiable view of the request headers.
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(requestHeader);
+    }
+
     /**
      * Checks if a specific header key exists in the request headers.
      *
@@ -94,6 +150,16 @@ public class RequestHeader {
         return requestHeader.containsKey(key);
     }
 
+    /**
+     * Checks if a header was sent more than once, only its last value is kept.
+     *
+     * @param key The header key to check.
+     * @return true if the header was repeated, false otherwise.
+     */
+    public boolean isHeaderRepeated(String key) {
+        return repeatedHeaders.contains(key);
+    }
+
     /**
      * Retrieves the range values specified in the "Range" header.
      *
@@ -144,15 +210,16 @@ public class RequestHeader {
                 || !rangeValues.containsKey("endIndex")) {
             return false;
         }
-        long startIndex = 0;
-        if (!rangeValues.get("startIndex").equals("")) {
-            startIndex = Long.parseLong(rangeValues.get("startIndex"));
+        // A suffix range "bytes=-{n}" needs a length, an end past the file is cut to the file
+        if (rangeValues.get("startIndex").equals("")) {
+            return !rangeValues.get("endIndex").equals("") && Long.parseLong(rangeValues.get("endIndex")) > 0;
         }
+        long startIndex = Long.parseLong(rangeValues.get("startIndex"));
         long endIndex = fileLength - 1;
         if (!rangeValues.get("endIndex").equals("")) {
             endIndex = Long.parseLong(rangeValues.get("endIndex"));
         }
-        if (startIndex < 0 || startIndex > endIndex || endIndex >= fileLength) {
+        if (startIndex < 0 || startIndex > endIndex || startIndex >= fileLength) {
             return false;
         }
         return true;
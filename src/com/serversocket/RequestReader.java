@@ -0,0 +1,160 @@
+package com.serversocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class RequestReader implements Closeable {
+    private final InputStream inputStream;
+    private ByteBuffer buffer;
+    private final byte[] bytes;
+    private final int offset;
+
+    private int position;
+    private int limit;
+
+    // Read by the slow client guard while the connection's thread reads.
+    private volatile long bytesRead;
+    private volatile boolean reading;
+
+    /**
+     * Constructs a RequestReader that reads through a buffer borrowed from the buffer pool.
+     *
+     * @param inputStream the client input stream.
+     */
+    public RequestReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+        this.buffer = BufferPool.getInstance().acquire(BufferPool.MEDIUM);
+        this.bytes = buffer.array();
+        this.offset = buffer.arrayOffset();
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    /**
+     * Reads a line terminated by "\n" or "\r\n", without the terminator.
+     *
+     * @return the line, or null at the end of the stream.
+     * @throws IOException If an I/O error occurs or the line does not fit in the buffer.
+     */
+    public String readLine() throws IOException {
+        int scanFrom = position;
+        while (true) {
+            for (int i = scanFrom; i < limit; i++) {
+                if (bytes[offset + i] == '\n') {
+                    int end = (i > position && bytes[offset + i - 1] == '\r') ? i - 1 : i;
+                    String line = new String(bytes, offset + position, end - position, StandardCharsets.UTF_8);
+                    position = i + 1;
+                    return line;
+                }
+            }
+
+            // Everything buffered has been scanned, read more (which may move the unread bytes to the front).
+            int scannedLength = limit - position;
+            if (fill() == -1) {
+                if (position == limit) {
+                    return null;
+                }
+                String line = new String(bytes, offset + position, limit - position, StandardCharsets.UTF_8);
+                position = limit;
+                return line;
+            }
+            scanFrom = position + scannedLength;
+        }
+    }
+
+    /**
+     * Reads raw bytes, serving what is left in the buffer first.
+     *
+     * @param b   the destination array.
+     * @param off the offset in the destination array.
+     * @param len the maximum number of bytes to read.
+     * @return the number of bytes read, or -1 at the end of the stream.
+     * @throws IOException If an I/O error occurs.
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (position == limit) {
+            return readStream(b, off, len);
+        }
+        int count = Math.min(len, limit - position);
+        System.arraycopy(bytes, offset + position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Compacts the unread bytes to the front of the buffer and reads more from the stream.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     * @throws IOException If an I/O error occurs or the buffer is full.
+     */
+    private int fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(bytes, offset + position, bytes, offset, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.capacity()) {
+            throw new IOException("Request line is longer than " + buffer.capacity() + " bytes");
+        }
+        int bytesRead = readStream(bytes, offset + limit, buffer.capacity() - limit);
+        if (bytesRead > 0) {
+            limit += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Reads from the stream, counting the bytes and marking the time spent blocked.
+     */
+    private int readStream(byte[] b, int off, int len) throws IOException {
+        reading = true;
+        try {
+            int count = inputStream.read(b, off, len);
+            if (count > 0) {
+                bytesRead += count;
+            }
+            return count;
+        } finally {
+            reading = false;
+        }
+    }
+
+    /**
+     * Retrieves the number of bytes received from the stream so far.
+     *
+     * @return the bytes read.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Checks if the reader is waiting for bytes from the stream.
+     *
+     * @return true while blocked in a read, false otherwise.
+     */
+    public boolean isReading() {
+        return reading;
+    }
+
+    /**
+     * Hands the buffer over to a long-lived owner, see {@link BufferPool#transfer(ByteBuffer, String)}.
+     *
+     * @param owner the name of the new owner.
+     */
+    public void transferBuffer(String owner) {
+        BufferPool.getInstance().transfer(buffer, owner);
+    }
+
+    /**
+     * Gives the buffer back to the pool. The underlying stream is closed with the socket.
+     */
+    @Override
+    public void close() {
+        BufferPool.getInstance().release(buffer);
+        buffer = null;
+    }
+}
@@ -0,0 +1,217 @@
+package com.serversocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only site packed into one file by {@link BundlePacker}, served from a single memory mapping.
+ *
+ * Layout, all numbers big-endian:
+ * <pre>
+ * header   magic "SITB", version, entry count, reserved            4 ints
+ * index    one record per file, sorted by path bytes:
+ *          meta offset, data offset, data length,
+ *          gzip offset, gzip length (0 if there is no gzip variant)  5 longs
+ * meta     per file: path, content type, ETag                      3 x (short length, UTF-8 bytes)
+ * data     file contents and their gzip variants
+ * </pre>
+ * Paths are relative to the site root, use "/" separators and have no leading slash.
+ */
+public class SiteBundle {
+    public static final String EXTENSION = ".bundle";
+
+    static final int MAGIC = 0x53495442; // "SITB"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 40;
+
+    private static final String DEFAULT_FILE = "index.html";
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int entryCount;
+
+    public static class Entry {
+        private final String path;
+        private final String contentType;
+        private final String etag;
+        private final ByteBuffer data;
+        private final ByteBuffer gzipData;
+
+        Entry(String path, String contentType, String etag, ByteBuffer data, ByteBuffer gzipData) {
+            this.path = path;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.data = data;
+            this.gzipData = gzipData;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Retrieves the file content, a read-only view of the mapping.
+         *
+         * @return the file bytes.
+         */
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+
+        /**
+         * Retrieves the precompressed file content.
+         *
+         * @return the gzip bytes, or null if the bundle has no gzip variant of the file.
+         */
+        public ByteBuffer getGzipData() {
+            return (gzipData == null) ? null : gzipData.duplicate();
+        }
+    }
+
+    private SiteBundle(Path path, MappedByteBuffer buffer, int entryCount) {
+        this.path = path;
+        this.buffer = buffer;
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * Maps a bundle file. The file descriptor is closed right away, the mapping stays valid until it is
+     * garbage collected, so a bundle replaced on disk keeps serving the responses still using it.
+     *
+     * @param path the bundle file.
+     * @return the opened bundle.
+     * @throws IOException If the file cannot be mapped or is not a bundle.
+     */
+    public static SiteBundle open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Bundle " + path + " has an invalid size of " + channel.size() + " bytes");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("File " + path + " is not a version " + VERSION + " site bundle");
+        }
+        int entryCount = buffer.getInt(8);
+        if (entryCount < 0 || HEADER_SIZE + (long) entryCount * RECORD_SIZE > buffer.capacity()) {
+            throw new IOException("Bundle " + path + " has a truncated index");
+        }
+        return new SiteBundle(path, buffer, entryCount);
+    }
+
+    /**
+     * Looks up a requested file, falling back to the directory's index.html as directory trees do.
+     *
+     * @param requestedFile the requested path without leading slash, "" for the site root.
+     * @return the entry, or null if the bundle has no such file.
+     */
+    public Entry find(String requestedFile) {
+        String path = requestedFile.endsWith("/")
+                ? requestedFile.substring(0, requestedFile.length() - 1) : requestedFile;
+        Entry entry = path.isEmpty() ? null : get(path);
+        if (entry == null) {
+            entry = get(path.isEmpty() ? DEFAULT_FILE : path + "/" + DEFAULT_FILE);
+        }
+        return entry;
+    }
+
+    /**
+     * Looks up an exact path by binary search over the sorted index.
+     *
+     * @param path the file path within the bundle.
+     * @return the entry, or null if the bundle has no such file.
+     */
+    public Entry get(String path) {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = comparePath(middle, key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return readEntry(middle);
+            }
+        }
+        return null;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public long getMappedBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Compares the path of an index record with a key, byte by byte as unsigned values.
+     *
+     * @param index the record index.
+     * @param key   the UTF-8 path to compare with.
+     * @return a negative number, zero or a positive number as the record's path sorts before, equal or after the key.
+     */
+    private int comparePath(int index, byte[] key) {
+        int metaOffset = (int) buffer.getLong(recordOffset(index));
+        int length = Short.toUnsignedInt(buffer.getShort(metaOffset));
+        int start = metaOffset + 2;
+
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int comparison = Byte.toUnsignedInt(buffer.get(start + i)) - Byte.toUnsignedInt(key[i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return length - key.length;
+    }
+
+    private Entry readEntry(int index) {
+        int record = recordOffset(index);
+        int position = (int) buffer.getLong(record);
+
+        String[] meta = new String[3];
+        for (int i = 0; i < meta.length; i++) {
+            int length = Short.toUnsignedInt(buffer.getShort(position));
+            byte[] bytes = new byte[length];
+            buffer.get(position + 2, bytes);
+            meta[i] = new String(bytes, StandardCharsets.UTF_8);
+            position += 2 + length;
+        }
+
+        ByteBuffer data = slice(buffer.getLong(record + 8), buffer.getLong(record + 16));
+        long gzipLength = buffer.getLong(record + 32);
+        ByteBuffer gzipData = (gzipLength == 0) ? null : slice(buffer.getLong(record + 24), gzipLength);
+        return new Entry(meta[0], meta[1], meta[2], data, gzipData);
+    }
+
+    private ByteBuffer slice(long offset, long length) {
+        return buffer.slice((int) offset, (int) length).asReadOnlyBuffer();
+    }
+
+    private static int recordOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,155 @@
+package com.serversocket;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SiteBundleService {
+    public static final String CHECK_INTERVAL_KEY = "BUNDLE_CHECK_INTERVAL";
+
+    private static final int DEFAULT_CHECK_INTERVAL = 1000; // in milliseconds
+
+    private final long checkInterval;
+
+    // Mounted bundle of each virtual host whose document root is a bundle file.
+    private final Map<String, Mount> mounts;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder swaps = new LongAdder();
+
+    private static class Mount {
+        final Path path;
+        volatile SiteBundle bundle;
+        volatile Object fileKey;
+        volatile long lastModified;
+        volatile long lastChecked;
+
+        Mount(Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Constructs a SiteBundleService and maps the bundle of every virtual host configured with one.
+     *
+     * @param configService the loaded server configuration.
+     */
+    public SiteBundleService(ConfigService configService) {
+        this.checkInterval = configService.getIntSettingsWithKey(CHECK_INTERVAL_KEY, DEFAULT_CHECK_INTERVAL);
+        this.mounts = new TreeMap<>();
+
+        for (Map.Entry<String, String> bundleHost : configService.getBundleHosts().entrySet()) {
+            Mount mount = new Mount(Path.of(bundleHost.getValue()));
+            try {
+                remap(mount);
+                System.out.format("[%s] Mounted %s with %d files from %s\n", new Date(),
+                        bundleHost.getKey(), mount.bundle.getEntryCount(), mount.path);
+            } catch (IOException e) {
+                System.err.printf("[%s] Bundle of %s not mounted - %s\n", new Date(), bundleHost.getKey(), e.getMessage());
+            }
+            mounts.put(bundleHost.getKey(), mount);
+        }
+    }
+
+    /**
+     * Checks if a virtual host is served from a bundle.
+     *
+     * @param host the virtual host.
+     * @return true if the host's document root is a bundle file, false otherwise.
+     */
+    public boolean isBundleHost(String host) {
+        return host != null && mounts.containsKey(host);
+    }
+
+    /**
+     * Creates the file service of a request to a bundle host.
+     *
+     * @param host          the virtual host.
+     * @param requestedFile the requested path without leading slash.
+     * @param acceptsGzip   whether the client accepts gzip content coding.
+     * @return the file service, or null if the bundle has no such file or is not mounted.
+     */
+    public FileService getFileService(String host, String requestedFile, boolean acceptsGzip) {
+        SiteBundle bundle = getBundle(mounts.get(host));
+        SiteBundle.Entry entry = (bundle == null) ? null : bundle.find(requestedFile);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new FileService(entry, acceptsGzip);
+    }
+
+    /**
+     * Retrieves the mounted bundle, remapping it if the file was replaced since the last check.
+     * Files are checked at most once per interval, so requests in between cost no system call.
+     *
+     * @param mount the host's mount.
+     * @return the current bundle, or null if none could be mapped.
+     */
+    private SiteBundle getBundle(Mount mount) {
+        long now = System.currentTimeMillis();
+        if (now - mount.lastChecked < checkInterval) {
+            return mount.bundle;
+        }
+
+        synchronized (mount) {
+            if (now - mount.lastChecked >= checkInterval) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(mount.path, BasicFileAttributes.class);
+                    if (!Objects.equals(attributes.fileKey(), mount.fileKey)
+                            || attributes.lastModifiedTime().toMillis() != mount.lastModified) {
+                        remap(mount);
+                        swaps.increment();
+                        System.out.format("[%s] Remapped %s with %d files\n", new Date(), mount.path, mount.bundle.getEntryCount());
+                    }
+                } catch (IOException e) {
+                    // Keep serving the current mapping until a valid bundle is deployed
+                    System.err.printf("[%s] Bundle %s not remapped - %s\n", new Date(), mount.path, e.getMessage());
+                }
+                mount.lastChecked = now;
+            }
+        }
+        return mount.bundle;
+    }
+
+    /**
+     * Maps the bundle file of a mount. The previous mapping is released once the responses using it are done.
+     *
+     * @param mount the host's mount.
+     * @throws IOException If the file cannot be mapped or is not a bundle.
+     */
+    private static void remap(Mount mount) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(mount.path, BasicFileAttributes.class);
+        mount.bundle = SiteBundle.open(mount.path);
+        mount.fileKey = attributes.fileKey();
+        mount.lastModified = attributes.lastModifiedTime().toMillis();
+        mount.lastChecked = System.currentTimeMillis();
+    }
+
+    /**
+     * Retrieves a summary of the bundle counters.
+     *
+     * @return the bundle statistics.
+     */
+    public String getStats() {
+        int files = 0;
+        long mappedBytes = 0;
+        for (Mount mount : mounts.values()) {
+            SiteBundle bundle = mount.bundle;
+            if (bundle != null) {
+                files += bundle.getEntryCount();
+                mappedBytes += bundle.getMappedBytes();
+            }
+        }
+        return String.format("bundles=%d, files=%d, mappedBytes=%d, hits=%d, misses=%d, swaps=%d",
+                mounts.size(), files, mappedBytes, hits.sum(), misses.sum(), swaps.sum());
+    }
+}
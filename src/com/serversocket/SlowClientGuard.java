@@ -0,0 +1,212 @@
+package com.serversocket;
+
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes connections of clients too slow to be worth a worker thread, checked by one shared scheduler thread.
+ * A client must send its whole request header within a deadline, send request bytes at a minimum rate once its request
+ * started arriving, and take response bytes at a minimum rate. Time the server spends elsewhere, e.g. waiting for an
+ * upstream or throttling the client, does not count against the client.
+ */
+public class SlowClientGuard {
+    public static final String HEADER_TIMEOUT_KEY = "CLIENT_HEADER_TIMEOUT";
+    public static final String MIN_RECEIVE_RATE_KEY = "CLIENT_MIN_RECEIVE_RATE";
+    public static final String MIN_SEND_RATE_KEY = "CLIENT_MIN_SEND_RATE";
+    public static final String RATE_GRACE_KEY = "CLIENT_RATE_GRACE";
+    public static final String CHECK_INTERVAL_KEY = "CLIENT_CHECK_INTERVAL";
+
+    private static final int DEFAULT_HEADER_TIMEOUT = 10; // in seconds, 0 turns each check off
+    private static final int DEFAULT_MIN_RECEIVE_RATE = 256; // in bytes per second
+    private static final int DEFAULT_MIN_SEND_RATE = 1024; // in bytes per second
+    private static final int DEFAULT_RATE_GRACE = 5; // in seconds
+    private static final int DEFAULT_CHECK_INTERVAL = 500; // in milliseconds
+
+    private final long headerTimeout;
+    private final long minReceiveRate;
+    private final long minSendRate;
+    private final long rateGrace;
+    private final long checkInterval;
+
+    private final Set<Watch> watches;
+
+    private final LongAdder headerTimeouts = new LongAdder();
+    private final LongAdder slowReceives = new LongAdder();
+    private final LongAdder slowSends = new LongAdder();
+
+    /**
+     * The progress of one connection, updated by its worker and checked by the scheduler.
+     */
+    public class Watch {
+        private final ClientServer connection;
+        private volatile RequestReader reader;
+        private volatile PooledOutputStream writer;
+
+        // When the current request header started to be awaited, 0 once it is read.
+        private volatile long headerStartedNanos;
+        private volatile long requestStartBytes;
+        private volatile int requests;
+
+        // Only touched by the scheduler thread.
+        private int checkedRequests;
+        private long receiveNanos;
+        private long lastCheckNanos;
+
+        private Watch(ClientServer connection) {
+            this.connection = connection;
+            this.lastCheckNanos = System.nanoTime();
+        }
+
+        /**
+         * Sets the streams whose progress is checked, once the connection has them.
+         *
+         * @param reader the client's request reader.
+         * @param writer the client's output stream.
+         */
+        public void setStreams(RequestReader reader, PooledOutputStream writer) {
+            this.reader = reader;
+            this.writer = writer;
+        }
+
+        /**
+         * Starts the header deadline of the next request.
+         */
+        public void beginHeader() {
+            RequestReader requestReader = reader;
+            requestStartBytes = (requestReader == null) ? 0 : requestReader.getBytesRead();
+            requests++;
+            headerStartedNanos = System.nanoTime();
+        }
+
+        /**
+         * Stops the header deadline, the request header was read.
+         */
+        public void endHeader() {
+            headerStartedNanos = 0;
+        }
+
+        /**
+         * Stops checking the connection.
+         */
+        public void close() {
+            watches.remove(this);
+        }
+    }
+
+    /**
+     * Constructs a SlowClientGuard with the configured limits and starts its scheduler.
+     *
+     * @param configService the loaded server configuration.
+     */
+    public SlowClientGuard(ConfigService configService) {
+        this.headerTimeout = TimeUnit.SECONDS.toNanos(
+                configService.getIntSettingsWithKey(HEADER_TIMEOUT_KEY, DEFAULT_HEADER_TIMEOUT));
+        this.minReceiveRate = configService.getIntSettingsWithKey(MIN_RECEIVE_RATE_KEY, DEFAULT_MIN_RECEIVE_RATE);
+        this.minSendRate = configService.getIntSettingsWithKey(MIN_SEND_RATE_KEY, DEFAULT_MIN_SEND_RATE);
+        this.rateGrace = TimeUnit.SECONDS.toNanos(configService.getIntSettingsWithKey(RATE_GRACE_KEY, DEFAULT_RATE_GRACE));
+        this.checkInterval = configService.getIntSettingsWithKey(CHECK_INTERVAL_KEY, DEFAULT_CHECK_INTERVAL);
+        this.watches = ConcurrentHashMap.newKeySet();
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "slow-client-guard");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts checking a connection, with the header deadline of its first request running.
+     *
+     * @param connection the connection.
+     * @return the watch the connection reports its progress to.
+     */
+    public Watch watch(ClientServer connection) {
+        Watch watch = new Watch(connection);
+        watch.beginHeader();
+        watches.add(watch);
+        return watch;
+    }
+
+    /**
+     * Retrieves a summary of the slow client counters.
+     *
+     * @return the slow client statistics.
+     */
+    public String getStats() {
+        return String.format("watched=%d, headerTimeouts=%d, slowReceives=%d, slowSends=%d",
+                watches.size(), headerTimeouts.sum(), slowReceives.sum(), slowSends.sum());
+    }
+
+    /**
+     * Checks every connection against the limits, closing the ones too slow.
+     */
+    private void check() {
+        long now = System.nanoTime();
+        for (Watch watch : watches) {
+            try {
+                String violation = getViolation(watch, now);
+                if (violation != null) {
+                    watches.remove(watch);
+                    watch.connection.closeSlowClient(violation);
+                }
+            } catch (RuntimeException e) {
+                // Keep the scheduler running for the other connections
+                System.err.printf("[%s] %s - %s\n", new Date(), e.getClass(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Finds the limit a connection breaks.
+     *
+     * @return the violation, or null if the connection keeps up.
+     */
+    private String getViolation(Watch watch, long now) {
+        long elapsed = now - watch.lastCheckNanos;
+        watch.lastCheckNanos = now;
+
+        long headerStarted = watch.headerStartedNanos;
+        if (headerTimeout > 0 && headerStarted != 0 && now - headerStarted > headerTimeout) {
+            headerTimeouts.increment();
+            return "request header not received in " + TimeUnit.NANOSECONDS.toSeconds(headerTimeout) + "s";
+        }
+
+        // Receive rate, over the time spent waiting for request bytes since the request's first byte
+        RequestReader reader = watch.reader;
+        if (watch.checkedRequests != watch.requests) {
+            watch.checkedRequests = watch.requests;
+            watch.receiveNanos = 0;
+        }
+        if (minReceiveRate > 0 && reader != null && reader.isReading()) {
+            long received = reader.getBytesRead() - watch.requestStartBytes;
+            if (received > 0) {
+                watch.receiveNanos += elapsed;
+                if (watch.receiveNanos > rateGrace && received * 1_000_000_000L < minReceiveRate * watch.receiveNanos) {
+                    slowReceives.increment();
+                    return "sent " + received + " request bytes in " + TimeUnit.NANOSECONDS.toSeconds(watch.receiveNanos) + "s";
+                }
+            }
+        }
+
+        // Send rate, a blocked write must finish within the grace period plus its length at the minimum rate
+        PooledOutputStream writer = watch.writer;
+        if (minSendRate > 0 && writer != null) {
+            long writeStarted = writer.getWriteStartedNanos();
+            if (writeStarted != 0) {
+                long length = writer.getWriteLength();
+                if (now - writeStarted > rateGrace + length * 1_000_000_000L / minSendRate) {
+                    slowSends.increment();
+                    return "took " + length + " response bytes in over "
+                            + TimeUnit.NANOSECONDS.toSeconds(now - writeStarted) + "s";
+                }
+            }
+        }
+        return null;
+    }
+}
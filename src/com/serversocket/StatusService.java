@@ -0,0 +1,116 @@
+package com.serversocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class StatusService {
+    public static final String STATUS_PATH = "server-status";
+    public static final String HEALTH_PATH = "health";
+    public static final String STATUS_PORT_KEY = "STATUS_PORT";
+    public static final String STATUS_ADDRESS_KEY = "STATUS_ADDRESS";
+
+    private static final String DEFAULT_STATUS_ADDRESS = "127.0.0.1";
+
+    private final Map<String, Supplier<String>> sections;
+
+    // The status and health paths are only served on this port, 0 when they are not served.
+    private final int port;
+    private final String address;
+
+    /**
+     * Constructs a StatusService listening where the configuration says, by default nowhere.
+     *
+     * @param configService the loaded server configuration.
+     */
+    public StatusService(ConfigService configService) {
+        this.sections = new LinkedHashMap<>();
+        this.port = configService.getIntSettingsWithKey(STATUS_PORT_KEY, 0);
+        this.address = configService.getSettingsWithKey(STATUS_ADDRESS_KEY, DEFAULT_STATUS_ADDRESS).trim();
+    }
+
+    /**
+     * Checks if the status listener is configured.
+     *
+     * @return true if STATUS_PORT is set, false otherwise.
+     */
+    public boolean isEnabled() {
+        return port > 0;
+    }
+
+    /**
+     * Retrieves the port the status listener binds to.
+     *
+     * @return the status port, 0 if the listener is off.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Retrieves the address the status listener binds to.
+     *
+     * @return the status address, the loopback address by default.
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Adds a named section of counters to the status page.
+     *
+     * @param name  the section name.
+     * @param stats the supplier of the section's current counters.
+     */
+    public synchronized void register(String name, Supplier<String> stats) {
+        sections.put(name, stats);
+    }
+
+    /**
+     * Checks if a connection was accepted by the status listener. Virtual hosts never serve the status paths,
+     * so files with those names stay reachable and the counters stay private.
+     *
+     * @param localPort the local port of the connection.
+     * @return true if the connection is on the status port, false otherwise.
+     */
+    public boolean isStatusPort(int localPort) {
+        return port > 0 && localPort == port;
+    }
+
+    /**
+     * Checks if the requested file is served by the status service.
+     *
+     * @param requestedFile the requested file path.
+     * @return true if the path is the status or health path, false otherwise.
+     */
+    public boolean isStatusPath(String requestedFile) {
+        return requestedFile.equals(STATUS_PATH) || requestedFile.equals(HEALTH_PATH);
+    }
+
+    /**
+     * Creates the file service of a status or health request.
+     *
+     * @param requestedFile the requested file path.
+     * @return FileService
+     */
+    public FileService getFileService(String requestedFile) {
+        String body = requestedFile.equals(HEALTH_PATH) ? "OK\n" : getStatus();
+        return new FileService("text/plain", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Generates the status page, one line per registered section.
+     *
+     * @return the status text.
+     */
+    private synchronized String getStatus() {
+        StringBuilder status = new StringBuilder();
+        status.append("time: ").append(new Date()).append('\n');
+        for (Map.Entry<String, Supplier<String>> section : sections.entrySet()) {
+            status.append(section.getKey()).append(": ").append(section.getValue().get()).append('\n');
+        }
+        return status.toString();
+    }
+}
@@ -0,0 +1,246 @@
+package com.serversocket;
+
+import javax.net.ssl.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TlsService {
+    public static final String HTTPS_PORT_KEY = "HTTPS_PORT";
+    public static final String KEYSTORE_KEY = "TLS_KEYSTORE";
+    public static final String KEYSTORE_PASSWORD_KEY = "TLS_KEYSTORE_PASSWORD";
+    public static final String DEFAULT_ALIAS_KEY = "TLS_DEFAULT_ALIAS";
+    public static final String ALIAS_KEY_PREFIX = "TLS_ALIAS@";
+    public static final String SESSION_CACHE_SIZE_KEY = "TLS_SESSION_CACHE_SIZE";
+    public static final String SESSION_TIMEOUT_KEY = "TLS_SESSION_TIMEOUT";
+    public static final String SESSION_TICKETS_KEY = "TLS_SESSION_TICKETS";
+    public static final String ALPN_KEY = "TLS_ALPN";
+
+    private static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+    private static final int DEFAULT_SESSION_TIMEOUT = 86400; // in seconds
+    private static final String DEFAULT_ALPN = "http/1.1";
+
+    private final ConfigService configService;
+    private final SSLContext sslContext;
+    private final String[] applicationProtocols;
+    private final long startedAt;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    /**
+     * Constructs a TlsService and builds the SSL context once, so every accepted connection shares it.
+     *
+     * @param configService the loaded server configuration.
+     * @throws Exception if the keystore cannot be loaded or the SSL context cannot be initialized.
+     */
+    public TlsService(ConfigService configService) throws Exception {
+        this.configService = configService;
+        this.applicationProtocols = configService.getSettingsWithKey(ALPN_KEY, DEFAULT_ALPN).split("\\s*,\\s*");
+        this.startedAt = System.nanoTime();
+
+        // Must be set before the first handshake, the JDK reads it once.
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                Boolean.toString(configService.getBooleanSettingsWithKey(SESSION_TICKETS_KEY, true)));
+
+        this.sslContext = createSslContext();
+    }
+
+    /**
+     * Checks if the configuration asks for an HTTPS listener.
+     *
+     * @param configService the loaded server configuration.
+     * @return true if the HTTPS port is configured, false otherwise.
+     */
+    public static boolean isEnabled(ConfigService configService) {
+        return configService.getSettingsWithKey(HTTPS_PORT_KEY, null) != null;
+    }
+
+    /**
+     * Retrieves the configured HTTPS port.
+     *
+     * @return the HTTPS port number.
+     */
+    public int getPort() {
+        return configService.getIntSettingsWithKey(HTTPS_PORT_KEY, 443);
+    }
+
+    /**
+     * Creates the HTTPS server socket bound to the given address.
+     *
+     * @param address the address to bind to.
+     * @return the server socket.
+     * @throws IOException if the socket cannot be bound.
+     */
+    public SSLServerSocket createServerSocket(InetAddress address) throws IOException {
+        SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory()
+                .createServerSocket(getPort(), 50, address);
+
+        SSLParameters parameters = serverSocket.getSSLParameters();
+        parameters.setApplicationProtocols(applicationProtocols);
+        parameters.setUseCipherSuitesOrder(true);
+        serverSocket.setSSLParameters(parameters);
+        return serverSocket;
+    }
+
+    /**
+     * Runs the TLS handshake of an accepted socket and records whether the session was resumed.
+     *
+     * @param socket     the accepted TLS socket.
+     * @param acceptedAt the time the socket was accepted, in milliseconds.
+     * @throws IOException if the handshake fails.
+     */
+    public void handshake(SSLSocket socket, long acceptedAt) throws IOException {
+        socket.startHandshake();
+        SSLSession session = socket.getSession();
+
+        // A session created before this connection was accepted came from the cache or a ticket.
+        boolean resumed = session.getCreationTime() < acceptedAt;
+        long total = handshakes.incrementAndGet();
+        long resumedTotal = resumed ? resumedHandshakes.incrementAndGet() : resumedHandshakes.get();
+
+        System.out.format("[%s] TLS %s %s (%s, alpn=%s) - %s\n", new Date(), session.getProtocol(),
+                resumed ? "resumed" : "full handshake", session.getCipherSuite(),
+                socket.getApplicationProtocol(), getStats(total, resumedTotal));
+    }
+
+    /**
+     * Retrieves a summary of the handshake counters.
+     *
+     * @return the handshake statistics.
+     */
+    public String getStats() {
+        return getStats(handshakes.get(), resumedHandshakes.get());
+    }
+
+    private String getStats(long total, long resumedTotal) {
+        double seconds = Math.max((System.nanoTime() - startedAt) / 1e9, 1e-3);
+        double ratio = (total == 0) ? 0 : (100.0 * resumedTotal / total);
+        return String.format("handshakes=%d (%.1f/s), resumed=%d (%.1f%%)",
+                total, total / seconds, resumedTotal, ratio);
+    }
+
+    /**
+     * Loads the keystore and creates the SSL context with the configured session cache.
+     *
+     * @return the initialized SSL context.
+     * @throws Exception if the keystore cannot be loaded.
+     */
+    private SSLContext createSslContext() throws Exception {
+        String keystorePath = configService.getSettingsWithKey(KEYSTORE_KEY, null);
+        if (keystorePath == null) {
+            throw new Exception("Config doesn't have " + KEYSTORE_KEY + " key required by " + HTTPS_PORT_KEY);
+        }
+        char[] password = configService.getSettingsWithKey(KEYSTORE_PASSWORD_KEY, "").toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(new File(keystorePath), password);
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password);
+        X509ExtendedKeyManager delegate = Arrays.stream(keyManagerFactory.getKeyManagers())
+                .filter(X509ExtendedKeyManager.class::isInstance)
+                .map(X509ExtendedKeyManager.class::cast)
+                .findFirst()
+                .orElseThrow(() -> new Exception("No X509 key manager for " + keystorePath));
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(new KeyManager[]{new SniKeyManager(delegate)}, null, null);
+
+        SSLSessionContext sessionContext = context.getServerSessionContext();
+        sessionContext.setSessionCacheSize(configService.getIntSettingsWithKey(SESSION_CACHE_SIZE_KEY, DEFAULT_SESSION_CACHE_SIZE));
+        sessionContext.setSessionTimeout(configService.getIntSettingsWithKey(SESSION_TIMEOUT_KEY, DEFAULT_SESSION_TIMEOUT));
+        return context;
+    }
+
+    /**
+     * Picks the certificate alias from the SNI host name, so each virtual host can present its own certificate.
+     * The alias is "TLS_ALIAS@{host}" if configured, otherwise the host name itself.
+     */
+    private class SniKeyManager extends X509ExtendedKeyManager {
+        private final X509ExtendedKeyManager delegate;
+
+        SniKeyManager(X509ExtendedKeyManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            SSLSession session = (socket instanceof SSLSocket) ? ((SSLSocket) socket).getHandshakeSession() : null;
+            return chooseAlias(keyType, issuers, session);
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            return chooseAlias(keyType, issuers, (engine == null) ? null : engine.getHandshakeSession());
+        }
+
+        private String chooseAlias(String keyType, Principal[] issuers, SSLSession session) {
+            String[] aliases = delegate.getServerAliases(keyType, issuers);
+            if (aliases == null) {
+                return null;
+            }
+
+            if (session instanceof ExtendedSSLSession) {
+                for (SNIServerName serverName : ((ExtendedSSLSession) session).getRequestedServerNames()) {
+                    if (!(serverName instanceof SNIHostName)) {
+                        continue;
+                    }
+                    String host = ((SNIHostName) serverName).getAsciiName();
+                    String requestedAlias = configService.getSettingsWithKey(ALIAS_KEY_PREFIX + host, host);
+                    String alias = findAlias(aliases, requestedAlias);
+                    if (alias != null) {
+                        return alias;
+                    }
+                    // The host has a certificate of another key type, let the handshake try that type instead.
+                    if (delegate.getPrivateKey(requestedAlias.toLowerCase()) != null) {
+                        return null;
+                    }
+                }
+            }
+
+            String defaultAlias = findAlias(aliases, configService.getSettingsWithKey(DEFAULT_ALIAS_KEY, null));
+            return (defaultAlias != null) ? defaultAlias : aliases[0];
+        }
+
+        private String findAlias(String[] aliases, String alias) {
+            for (String candidate : aliases) {
+                if (candidate.equalsIgnoreCase(alias)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return delegate.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return delegate.chooseClientAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return delegate.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return delegate.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return delegate.getPrivateKey(alias);
+        }
+    }
+}
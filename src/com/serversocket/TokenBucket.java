@@ -0,0 +1,75 @@
+package com.serversocket;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+public class TokenBucket {
+    private final double rate;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructs a full TokenBucket.
+     *
+     * @param rate     the tokens added per second.
+     * @param capacity the maximum number of tokens, i.e. the allowed burst.
+     */
+    public TokenBucket(double rate, double capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes tokens if there are enough of them.
+     *
+     * @param amount the number of tokens to take.
+     * @return true if the tokens were taken, false if the bucket does not hold enough.
+     */
+    public synchronized boolean tryConsume(double amount) {
+        refill();
+        if (tokens < amount) {
+            return false;
+        }
+        tokens -= amount;
+        return true;
+    }
+
+    /**
+     * Takes tokens, waiting until the bucket has refilled enough to cover them.
+     * The tokens are reserved up front, so concurrent callers queue behind each other.
+     *
+     * @param amount the number of tokens to take.
+     * @return the time waited in nanoseconds.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public long consume(double amount) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            refill();
+            tokens -= amount;
+            wait = (tokens >= 0) ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Adds the tokens earned since the last refill, up to the capacity.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
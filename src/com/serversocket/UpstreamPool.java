@@ -0,0 +1,288 @@
+package com.serversocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The keep-alive connections to one upstream server, with a limit on concurrent requests and a passive health check:
+ * after a number of consecutive connection failures or timeouts the upstream is skipped for a while.
+ */
+public class UpstreamPool {
+    private final String name;
+    private final String host;
+    private final int port;
+    private final int maxIdle;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long idleTimeout;
+    private final int maxFails;
+    private final long failTimeout;
+
+    // Requests in flight, each holds a permit.
+    private final Semaphore permits;
+    private final int maxConnections;
+
+    // Most recently used last, guarded by this.
+    private final ArrayDeque<Connection> idle;
+    private int consecutiveFails;
+    private long downUntil;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * A keep-alive connection to the upstream, with its pooled reader and writer.
+     */
+    public static class Connection {
+        private final Socket socket;
+        private final RequestReader reader;
+        private final PooledOutputStream writer;
+        private boolean reused;
+        private long idleSince;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.reader = new RequestReader(socket.getInputStream());
+            this.writer = new PooledOutputStream(socket.getOutputStream());
+        }
+
+        public RequestReader getReader() {
+            return reader;
+        }
+
+        public PooledOutputStream getWriter() {
+            return writer;
+        }
+
+        /**
+         * Checks if the connection was taken from the idle pool, the upstream may have closed it meanwhile.
+         *
+         * @return true if the connection served an earlier request, false if it was just opened.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.printf("[%s] %s\n", e.getClass(), e.getMessage());
+            }
+            reader.close();
+            writer.close();
+        }
+    }
+
+    public UpstreamPool(
+            String name,
+            int maxConnections,
+            int maxIdle,
+            int connectTimeout,
+            int readTimeout,
+            int idleTimeout,
+            int maxFails,
+            int failTimeout
+    ) {
+        int separator = name.lastIndexOf(':');
+        this.name = name;
+        this.host = name.substring(0, separator);
+        this.port = Integer.parseInt(name.substring(separator + 1));
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+        this.maxIdle = maxIdle;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        this.maxFails = maxFails;
+        this.failTimeout = TimeUnit.SECONDS.toNanos(failTimeout);
+        this.idle = new ArrayDeque<>();
+    }
+
+    /**
+     * Reserves a request slot without waiting. On a down upstream only the trial request gets one.
+     *
+     * @return true if the upstream is below its request limit, false otherwise.
+     */
+    public boolean tryAcquire() {
+        return permits.tryAcquire() && claimRequest();
+    }
+
+    /**
+     * Reserves a request slot, waiting for one to free up.
+     *
+     * @param timeout the maximum wait in milliseconds.
+     * @return true if a slot was reserved, false if the wait timed out or the upstream went down.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public boolean tryAcquire(long timeout) throws InterruptedException {
+        return permits.tryAcquire(timeout, TimeUnit.MILLISECONDS) && claimRequest();
+    }
+
+    /**
+     * Lets a request with a slot through, or gives the slot back. A down upstream lets one trial request through once
+     * its fail timeout passed, and pushes the timeout back so concurrent requests wait for the trial's outcome.
+     * A trial that never reports one is followed by another after the fail timeout.
+     *
+     * @return true if the request may go to the upstream, false otherwise.
+     */
+    private synchronized boolean claimRequest() {
+        if (consecutiveFails < maxFails) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - downUntil < 0) {
+            permits.release();
+            return false;
+        }
+        downUntil = now + failTimeout;
+        return true;
+    }
+
+    /**
+     * Gives back a request slot reserved with {@link #tryAcquire()}.
+     */
+    public void releasePermit() {
+        permits.release();
+    }
+
+    /**
+     * Takes an idle connection, or opens a new one. A request slot must be held.
+     *
+     * @return the connection.
+     * @throws IOException If the upstream cannot be connected.
+     */
+    public Connection borrow() throws IOException {
+        requests.increment();
+        long now = System.nanoTime();
+        synchronized (this) {
+            while (!idle.isEmpty()) {
+                Connection connection = idle.pollLast();
+                if (now - connection.idleSince < idleTimeout && !connection.socket.isClosed()) {
+                    reused.increment();
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return open();
+    }
+
+    /**
+     * Opens a fresh connection, bypassing the idle pool. A request slot must be held.
+     *
+     * @return the connection.
+     * @throws IOException If the upstream cannot be connected.
+     */
+    public Connection open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+            opened.increment();
+            return new Connection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection after its response was read completely, or closes it.
+     *
+     * @param connection the borrowed connection.
+     * @param reusable   whether the upstream keeps the connection open for another request.
+     */
+    public void giveBack(Connection connection, boolean reusable) {
+        if (reusable) {
+            connection.idleSince = System.nanoTime();
+            synchronized (this) {
+                if (idle.size() < maxIdle) {
+                    // Idle connections outlive the client connection that opened them
+                    connection.reader.transferBuffer("upstream " + name);
+                    connection.writer.transferBuffer("upstream " + name);
+                    idle.addLast(connection);
+                    return;
+                }
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Records a request that reached the upstream, which brings a down upstream back.
+     */
+    public synchronized void markSuccess() {
+        if (consecutiveFails >= maxFails) {
+            System.out.format("[%s] Upstream %s is up\n", new Date(), name);
+        }
+        consecutiveFails = 0;
+        downUntil = 0;
+    }
+
+    /**
+     * Records a connection failure or timeout, taking the upstream down after too many in a row.
+     */
+    public synchronized void markFailure() {
+        failures.increment();
+        consecutiveFails++;
+        if (consecutiveFails >= maxFails) {
+            if (consecutiveFails == maxFails) {
+                System.out.format("[%s] Upstream %s is down\n", new Date(), name);
+            }
+            downUntil = System.nanoTime() + failTimeout;
+
+            // Pooled connections to a failing upstream are likely dead too
+            Iterator<Connection> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                iterator.next().close();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Checks if the upstream may receive requests. A down upstream is due for one trial request once its fail timeout
+     * passed, which the first request to reserve a slot claims.
+     *
+     * @return true if the upstream is healthy or due for a retry, false otherwise.
+     */
+    public synchronized boolean isAvailable() {
+        return consecutiveFails < maxFails || System.nanoTime() - downUntil >= 0;
+    }
+
+    /**
+     * Retrieves the number of requests in flight, used by least-connections balancing.
+     *
+     * @return the active requests.
+     */
+    public int getActive() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Retrieves a summary of the upstream counters.
+     *
+     * @return the upstream statistics.
+     */
+    public synchronized String getStats() {
+        return String.format("%s %s active=%d idle=%d requests=%d opened=%d reused=%d failures=%d",
+                name, isAvailable() ? "up" : "down", getActive(), idle.size(),
+                requests.sum(), opened.sum(), reused.sum(), failures.sum());
+    }
+}
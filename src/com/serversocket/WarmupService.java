@@ -0,0 +1,174 @@
+package com.serversocket;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Function;
+
+public class WarmupService {
+    public static final String MANIFEST_KEY = "WARMUP_MANIFEST";
+    public static final String REPLAY_ROUNDS_KEY = "WARMUP_REPLAY_ROUNDS";
+
+    private static final String DEFAULT_FILE = "index.html";
+
+    private final ConfigService configService;
+
+    // Host and path of every file to preload, in manifest order.
+    private final List<String[]> targets;
+
+    public WarmupService(ConfigService configService) {
+        this.configService = configService;
+        this.targets = new ArrayList<>();
+    }
+
+    /**
+     * Preloads each virtual host's root index and the manifest paths into the file cache,
+     * then replays them as synthetic requests to warm up the request path.
+     *
+     * @param clientFactory creates the connection handler of a socket, as the listeners do.
+     * @throws IOException If the manifest cannot be read.
+     */
+    public void warmUp(Function<Socket, ClientServer> clientFactory) throws IOException {
+        long start = System.nanoTime();
+
+        for (Map.Entry<String, String> virtualHost : configService.getVirtualHosts().entrySet()) {
+            targets.add(new String[]{virtualHost.getKey(), "/"});
+        }
+        readManifest();
+
+        int preloaded = 0;
+        for (String[] target : targets) {
+            if (preload(target[0], target[1])) {
+                preloaded++;
+            }
+        }
+
+        int rounds = configService.getIntSettingsWithKey(REPLAY_ROUNDS_KEY, 0);
+        byte[] requests = getReplayRequests();
+        for (int i = 0; i < rounds; i++) {
+            ClientServer client = clientFactory.apply(new WarmupSocket(requests, configService.getPort()));
+            client.setSynthetic(true);
+            client.run();
+        }
+
+        System.out.format("[%s] Warm-up: %d files preloaded, %d requests replayed in %d ms\n", new Date(),
+                preloaded, rounds * targets.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Reads the manifest, one "{host} {path}" per line. Blank lines and lines starting with "#" are skipped.
+     *
+     * @throws IOException If the manifest cannot be read.
+     */
+    private void readManifest() throws IOException {
+        String manifest = configService.getSettingsWithKey(MANIFEST_KEY, null);
+        if (manifest == null) {
+            return;
+        }
+
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] target = line.split("\\s+", 2);
+                if (target.length == 2) {
+                    targets.add(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a file into the file cache, the default file for directories.
+     *
+     * @param host the virtual host.
+     * @param path the path below the host's document root.
+     * @return true if the file was loaded, false if it does not exist.
+     */
+    private boolean preload(String host, String path) {
+        String documentRoot = configService.getSettingsWithKey(host, null);
+        if (documentRoot == null || documentRoot.endsWith(SiteBundle.EXTENSION)) {
+            // Bundles are mapped whole, there is nothing to preload
+            return false;
+        }
+
+        String fullPath = documentRoot + path.replaceFirst("^/", "");
+        if (FileService.isDirectory(fullPath)) {
+            fullPath += "/" + DEFAULT_FILE;
+        }
+        try {
+            FileCache.getInstance().get(fullPath);
+            return true;
+        } catch (IOException e) {
+            System.err.printf("[%s] Warm-up skipped %s%s - %s\n", new Date(), host, path, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Builds one keep-alive connection's worth of requests for every target, closed by the last one.
+     *
+     * @return the raw request bytes.
+     */
+    private byte[] getReplayRequests() {
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < targets.size(); i++) {
+            String[] target = targets.get(i);
+            requests.append("GET ").append(target[1]).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(target[0]).append("\r\n")
+                    .append("Connection: ").append((i == targets.size() - 1) ? "close" : "keep-alive").append("\r\n")
+                    .append("\r\n");
+        }
+        return requests.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An in-memory loopback connection, so replayed requests take the same path as real ones.
+     */
+    private static class WarmupSocket extends Socket {
+        private final InputStream inputStream;
+        private final int localPort;
+
+        WarmupSocket(byte[] requests, int localPort) {
+            this.inputStream = new ByteArrayInputStream(requests);
+            this.localPort = localPort;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return localPort;
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) {
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+        }
+    }
+}
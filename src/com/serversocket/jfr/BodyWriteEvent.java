@@ -0,0 +1,11 @@
+package com.serversocket.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.serversocket.BodyWrite")
+@Label("Body Write")
+@Description("Writing the response body")
+public class BodyWriteEvent extends RequestPhaseEvent {
+}
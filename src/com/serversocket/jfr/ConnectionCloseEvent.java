@@ -0,0 +1,21 @@
+package com.serversocket.jfr;
+
+import jdk.jfr.*;
+
+@Name("com.serversocket.ConnectionClose")
+@Label("Connection Close")
+@Description("A connection was closed, the duration is its whole lifetime")
+@Category({"WW Server", "Connection"})
+@Enabled(false)
+@StackTrace(false)
+public class ConnectionCloseEvent extends Event {
+    @Label("Remote Address")
+    public String remoteAddress;
+
+    @Label("Requests")
+    public int requests;
+
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytesWritten;
+}
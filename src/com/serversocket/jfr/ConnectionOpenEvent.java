@@ -0,0 +1,21 @@
+package com.serversocket.jfr;
+
+import jdk.jfr.*;
+
+@Name("com.serversocket.ConnectionOpen")
+@Label("Connection Open")
+@Description("A worker picked up an accepted connection")
+@Category({"WW Server", "Connection"})
+@Enabled(false)
+@StackTrace(false)
+public class ConnectionOpenEvent extends Event {
+    @Label("Remote Address")
+    public String remoteAddress;
+
+    @Label("Scheme")
+    public String scheme;
+
+    @Label("Queue Delay")
+    @Timespan
+    public long queueDelay;
+}
@@ -0,0 +1,11 @@
+package com.serversocket.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.serversocket.HeaderParse")
+@Label("Header Parse")
+@Description("Reading and parsing the request header block")
+public class HeaderParseEvent extends RequestPhaseEvent {
+}
@@ -0,0 +1,11 @@
+package com.serversocket.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.serversocket.HeaderWrite")
+@Label("Header Write")
+@Description("Writing the response status line and headers")
+public class HeaderWriteEvent extends RequestPhaseEvent {
+}
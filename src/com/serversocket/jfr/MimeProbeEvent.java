@@ -0,0 +1,11 @@
+package com.serversocket.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.serversocket.MimeProbe")
+@Label("MIME Probe")
+@Description("Probing the content type of the file")
+public class MimeProbeEvent extends RequestPhaseEvent {
+}
@@ -0,0 +1,11 @@
+package com.serversocket.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.serversocket.PathResolve")
+@Label("Path Resolve")
+@Description("Mapping the host and path to a file, including MIME probing")
+public class PathResolveEvent extends RequestPhaseEvent {
+}
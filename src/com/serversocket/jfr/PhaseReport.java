@@ -0,0 +1,106 @@
+package com.serversocket.jfr;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+public class PhaseReport {
+    private static final String EVENT_PREFIX = "com.serversocket.";
+    private static final String[] PHASE_ORDER = {
+            "ConnectionOpen", "HeaderParse", "PathResolve", "MimeProbe", "ProxyForward", "HeaderWrite", "BodyWrite", "ConnectionClose"
+    };
+
+    private final Map<String, List<Long>> durations;
+    private final Map<String, Long> bytes;
+
+    public PhaseReport() {
+        this.durations = new TreeMap<>(Comparator.comparingInt(PhaseReport::phaseIndex).thenComparing(key -> key));
+        this.bytes = new HashMap<>();
+    }
+
+    /**
+     * Summarises recordings into per-phase latency breakdowns.
+     * Usage: PhaseReport [--by-vhost] recording.jfr...
+     */
+    public static void main(String[] args) throws IOException {
+        boolean byVhost = false;
+        List<Path> recordings = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--by-vhost")) {
+                byVhost = true;
+            } else {
+                recordings.add(Path.of(arg));
+            }
+        }
+        if (recordings.isEmpty()) {
+            System.err.println("Usage: java com.serversocket.jfr.PhaseReport [--by-vhost] recording.jfr...");
+            System.exit(1);
+        }
+
+        PhaseReport report = new PhaseReport();
+        for (Path recording : recordings) {
+            report.read(recording, byVhost);
+        }
+        report.print();
+    }
+
+    /**
+     * Collects the server events of a recording.
+     *
+     * @param recording the recording file.
+     * @param byVhost   whether the phases are broken down per virtual host.
+     * @throws IOException If the recording cannot be read.
+     */
+    private void read(Path recording, boolean byVhost) throws IOException {
+        try (RecordingFile recordingFile = new RecordingFile(recording)) {
+            while (recordingFile.hasMoreEvents()) {
+                RecordedEvent event = recordingFile.readEvent();
+                String name = event.getEventType().getName();
+                if (!name.startsWith(EVENT_PREFIX)) {
+                    continue;
+                }
+
+                String key = name.substring(EVENT_PREFIX.length());
+                if (byVhost && event.hasField("vhost") && event.getString("vhost") != null) {
+                    key += " " + event.getString("vhost");
+                }
+                durations.computeIfAbsent(key, k -> new ArrayList<>()).add(event.getDuration().toNanos());
+                if (event.hasField("bytes")) {
+                    bytes.merge(key, event.getLong("bytes"), Long::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints one line per phase with its count and latency percentiles in milliseconds.
+     */
+    private void print() {
+        System.out.format("%-36s %8s %9s %9s %9s %9s %9s %12s%n",
+                "Phase", "Count", "Avg", "P50", "P90", "P99", "Max", "Bytes");
+        for (Map.Entry<String, List<Long>> phase : durations.entrySet()) {
+            List<Long> values = phase.getValue();
+            Collections.sort(values);
+            double total = values.stream().mapToLong(Long::longValue).sum();
+
+            System.out.format("%-36s %8d %9.3f %9.3f %9.3f %9.3f %9.3f %12d%n",
+                    phase.getKey(), values.size(), total / values.size() / 1e6,
+                    percentile(values, 50), percentile(values, 90), percentile(values, 99),
+                    values.get(values.size() - 1) / 1e6, bytes.getOrDefault(phase.getKey(), 0L));
+        }
+    }
+
+    private static double percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    private static int phaseIndex(String key) {
+        String phase = key.split(" ")[0];
+        int index = Arrays.asList(PHASE_ORDER).indexOf(phase);
+        return (index == -1) ? PHASE_ORDER.length : index;
+    }
+}
@@ -0,0 +1,13 @@
+package com.serversocket.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.serversocket.ProxyForward")
+@Label("Proxy Forward")
+@Description("Forwarding a request to an upstream server and streaming its response back")
+public class ProxyForwardEvent extends RequestPhaseEvent {
+    @Label("Upstream")
+    public String upstream;
+}
@@ -0,0 +1,76 @@
+package com.serversocket.jfr;
+
+import com.serversocket.RequestHeader;
+import jdk.jfr.*;
+
+import java.util.HashMap;
+
+@Category({"WW Server", "Request"})
+@Enabled(false)
+@StackTrace(false)
+public abstract class RequestPhaseEvent extends Event {
+    @Label("Virtual Host")
+    protected String vhost;
+
+    @Label("Path")
+    protected String path;
+
+    @Label("Status")
+    protected int status;
+
+    @Label("Bytes")
+    @DataAmount
+    protected long bytes;
+
+    @Label("Range Start")
+    protected long rangeStart = -1;
+
+    @Label("Range End")
+    protected long rangeEnd = -1;
+
+    /**
+     * Fills the request fields from the parsed request header.
+     *
+     * @param requestHeader the parsed request header.
+     */
+    public void setRequest(RequestHeader requestHeader) {
+        this.vhost = requestHeader.getHeaderWithKey("Host");
+        this.path = "/" + requestHeader.getRequestedFile();
+
+        // A malformed range is recorded as absent, rejecting it is up to the request handling
+        try {
+            HashMap<String, String> rangeValues = requestHeader.getRangeValues();
+            if (rangeValues != null) {
+                this.rangeStart = parseIndex(rangeValues.get("startIndex"));
+                this.rangeEnd = parseIndex(rangeValues.get("endIndex"));
+            }
+        } catch (RuntimeException e) {
+            this.rangeStart = -1;
+            this.rangeEnd = -1;
+        }
+    }
+
+    /**
+     * Sets the path when the event is not tied to a parsed request.
+     *
+     * @param path the file path.
+     */
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Fills the response fields.
+     *
+     * @param status the response status code.
+     * @param bytes  the number of body bytes.
+     */
+    public void setResponse(int status, long bytes) {
+        this.status = status;
+        this.bytes = bytes;
+    }
+
+    private static long parseIndex(String index) {
+        return (index == null || index.isEmpty()) ? -1 : Long.parseLong(index);
+    }
+}